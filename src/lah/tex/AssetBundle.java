@@ -0,0 +1,462 @@
+package lah.tex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.spectre.stream.Streams;
+import lah.tex.manage.BloomFilter;
+
+/**
+ * Precompiled binary form of the LAHTeX assets (depend, index, desc and dbkeys) which is memory-mapped and read in
+ * place without any parsing.
+ *
+ * The bundle starts with a header {@code [magic][version][number of sections]} followed by the section table, each
+ * entry being {@code [name][offset][length]}. Every section is a sorted table of key-value records
+ * {@code [number of records][record offsets][records]} where a record is the UTF-8 encoded key, a zero byte and the
+ * UTF-8 encoded value terminated by a new line. Lookup is a binary search directly on the mapped bytes.
+ *
+ * The section {@link #SECTION_FILE_FILTER} is not a table but the serialized {@link BloomFilter} of all file names,
+ * precomputed here so that it is used in place rather than built from the file index on first use. The section
+ * {@link #SECTION_SOURCE_CHECKSUM} holds the checksum of the text assets the bundle is compiled from, so that a bundle
+ * left over from older assets (e.g. after an update of the application) is not used.
+ *
+ * @author L.A.H.
+ *
+ */
+public class AssetBundle {
+
+	/**
+	 * Names of the text assets, in the order they are checksummed
+	 */
+	public static final String[] ASSETS = { IEnvironment.LAHTEX_DEPEND, IEnvironment.LAHTEX_INDEX,
+			IEnvironment.LAHTEX_DESC, IEnvironment.LAHTEX_DBKEYS };
+
+	private static final byte[] MAGIC = { 'L', 'A', 'H', 'T', 'e', 'X', 'B', 0 };
+
+	/**
+	 * Section holding the {@link BloomFilter} of the keys of {@link #SECTION_FILE_INDEX}
+	 */
+	public static final String SECTION_FILE_FILTER = IEnvironment.LAHTEX_INDEX + "#filter";
+
+	/**
+	 * Default false positive rate of the filter of {@link #SECTION_FILE_FILTER}
+	 */
+	public static final double DEFAULT_FILE_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+	/**
+	 * Section mapping each file name to the (space separated) packages containing it
+	 */
+	public static final String SECTION_FILE_INDEX = IEnvironment.LAHTEX_INDEX + "#files";
+
+	/**
+	 * Section holding the checksum of the text assets, see {@link #checksum(Map)}
+	 */
+	public static final String SECTION_SOURCE_CHECKSUM = "#source";
+
+	private static final Pattern single_line_pattern = Pattern.compile("([^ ]+) (.*)\n");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Version of the binary format, bundles of different version are ignored
+	 */
+	public static final int VERSION = 2;
+
+	/**
+	 * Compute the checksum of the text assets
+	 *
+	 * @param assets
+	 *            Map each asset file name (one of {@link #ASSETS}) to its content, missing assets are skipped
+	 * @return SHA-1 checksum in lower case hexadecimal
+	 * @throws IOException
+	 */
+	public static String checksum(Map<String, String> assets) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		for (String asset : ASSETS) {
+			String content = assets.get(asset);
+			if (content == null)
+				continue;
+			digest.update(asset.getBytes(UTF8));
+			digest.update((byte) 0);
+			digest.update(content.getBytes(UTF8));
+			digest.update((byte) 0);
+		}
+		StringBuilder result = new StringBuilder(40);
+		for (byte b : digest.digest())
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return result.toString();
+	}
+
+	/**
+	 * Compile the text assets into a bundle
+	 *
+	 * @param assets
+	 *            Map each asset file name (one of {@link IEnvironment#LAHTEX_DEPEND}, {@link IEnvironment#LAHTEX_INDEX},
+	 *            {@link IEnvironment#LAHTEX_DESC}, {@link IEnvironment#LAHTEX_DBKEYS}) to its content
+	 * @param bundle_file
+	 *            The output file
+	 * @throws IOException
+	 */
+	public static void compile(Map<String, String> assets, File bundle_file) throws IOException {
+		compile(assets, bundle_file, DEFAULT_FILE_FILTER_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * Compile the text assets into a bundle
+	 *
+	 * @param assets
+	 *            Map each asset file name to its content, see {@link #compile(Map, File)}
+	 * @param bundle_file
+	 *            The output file
+	 * @param file_filter_false_positive_rate
+	 *            False positive rate of the filter of the file names, smaller rates take more space
+	 * @throws IOException
+	 */
+	public static void compile(Map<String, String> assets, File bundle_file, double file_filter_false_positive_rate)
+			throws IOException {
+		Map<String, List<byte[][]>> sections = new LinkedHashMap<String, List<byte[][]>>();
+		Map<String, byte[]> section_data = new LinkedHashMap<String, byte[]>();
+		section_data.put(SECTION_SOURCE_CHECKSUM, checksum(assets).getBytes(UTF8));
+		for (Map.Entry<String, String> asset : assets.entrySet()) {
+			if (asset.getKey().equals(IEnvironment.LAHTEX_INDEX)) {
+				List<byte[][]> packages = new ArrayList<byte[][]>();
+				Map<String, StringBuilder> files = new LinkedHashMap<String, StringBuilder>();
+				for (String line : asset.getValue().split("\n")) {
+					int k = line.indexOf('/');
+					if (k <= 0)
+						continue;
+					String pkg = line.substring(0, k);
+					packages.add(new byte[][] { pkg.getBytes(UTF8), line.substring(k + 1).getBytes(UTF8) });
+					for (String f : line.substring(k + 1).split("/")) {
+						if (f.isEmpty())
+							continue;
+						StringBuilder pkgs = files.get(f);
+						if (pkgs == null)
+							files.put(f, new StringBuilder(pkg));
+						else
+							pkgs.append(' ').append(pkg);
+					}
+				}
+				List<byte[][]> file_records = new ArrayList<byte[][]>(files.size());
+				for (Map.Entry<String, StringBuilder> f : files.entrySet())
+					file_records.add(new byte[][] { f.getKey().getBytes(UTF8),
+							f.getValue().toString().getBytes(UTF8) });
+				sections.put(IEnvironment.LAHTEX_INDEX, packages);
+				sections.put(SECTION_FILE_INDEX, file_records);
+				BloomFilter filter = new BloomFilter(files.size(), file_filter_false_positive_rate);
+				for (String f : files.keySet())
+					filter.add(f);
+				ByteArrayOutputStream filter_bytes = new ByteArrayOutputStream();
+				DataOutputStream filter_out = new DataOutputStream(filter_bytes);
+				filter.writeTo(filter_out);
+				filter_out.flush();
+				section_data.put(SECTION_FILE_FILTER, filter_bytes.toByteArray());
+			} else {
+				List<byte[][]> records = new ArrayList<byte[][]>();
+				Matcher matcher = single_line_pattern.matcher(asset.getValue());
+				while (matcher.find())
+					records.add(new byte[][] { matcher.group(1).getBytes(UTF8), matcher.group(2).getBytes(UTF8) });
+				sections.put(asset.getKey(), records);
+			}
+		}
+
+		// Serialize the sections
+		for (Map.Entry<String, List<byte[][]>> section : sections.entrySet())
+			section_data.put(section.getKey(), serializeSection(section.getValue()));
+		int header_length = MAGIC.length + 8;
+		for (String name : section_data.keySet())
+			header_length += 2 + name.getBytes(UTF8).length + 8;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bundle_file)));
+		try {
+			out.write(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(section_data.size());
+			int offset = header_length;
+			for (Map.Entry<String, byte[]> section : section_data.entrySet()) {
+				byte[] name_bytes = section.getKey().getBytes(UTF8);
+				out.writeShort(name_bytes.length);
+				out.write(name_bytes);
+				out.writeInt(offset);
+				out.writeInt(section.getValue().length);
+				offset += section.getValue().length;
+			}
+			for (byte[] data : section_data.values())
+				out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int compareBytes(byte[] a, int a_len, byte[] b) {
+		int n = Math.min(a_len, b.length);
+		for (int i = 0; i < n; i++) {
+			int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (d != 0)
+				return d;
+		}
+		return a_len - b.length;
+	}
+
+	/**
+	 * Offline asset compiler: {@code AssetBundle [asset directory] [output bundle file] [file filter false positive
+	 * rate]}, the rate being optional
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 3) {
+			System.out.println("Usage: AssetBundle [asset directory] [output bundle file]"
+					+ " [file filter false positive rate]");
+			return;
+		}
+		Map<String, String> assets = new LinkedHashMap<String, String>();
+		for (String asset : ASSETS) {
+			File asset_file = new File(args[0], asset);
+			if (asset_file.exists())
+				assets.put(asset, Streams.readTextFile(asset_file));
+		}
+		compile(assets, new File(args[1]), args.length == 3 ? Double.parseDouble(args[2])
+				: DEFAULT_FILE_FILTER_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * Open a compiled bundle
+	 *
+	 * @param bundle_file
+	 *            The bundle file
+	 * @param source_checksum
+	 *            Checksum of the current text assets (see {@link #checksum(Map)}) or {@code null} to accept a bundle
+	 *            compiled from any assets
+	 * @return The memory-mapped bundle or {@code null} if the file does not exist, is of a different version or is
+	 *         compiled from other assets
+	 * @throws IOException
+	 *             If the bundle is corrupted, e.g. truncated
+	 */
+	public static AssetBundle open(File bundle_file, String source_checksum) throws IOException {
+		if (!bundle_file.isFile())
+			return null;
+		RandomAccessFile raf = new RandomAccessFile(bundle_file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic);
+			if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != VERSION)
+				return null;
+			AssetBundle bundle = new AssetBundle(buffer);
+			if (source_checksum != null && !source_checksum.equals(bundle.getSourceChecksum()))
+				return null;
+			return bundle;
+		} catch (RuntimeException e) {
+			// e.g. BufferUnderflowException when the section table is truncated
+			throw new IOException("Corrupted asset bundle " + bundle_file, e);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			raf.close();
+		}
+	}
+
+	private static byte[] serializeSection(List<byte[][]> records) throws IOException {
+		Collections.sort(records, new Comparator<byte[][]>() {
+
+			@Override
+			public int compare(byte[][] r1, byte[][] r2) {
+				return compareBytes(r1[0], r1[0].length, r2[0]);
+			}
+
+		});
+		ByteArrayOutputStream record_bytes = new ByteArrayOutputStream();
+		int[] offsets = new int[records.size()];
+		int base = 4 + 4 * records.size();
+		for (int i = 0; i < offsets.length; i++) {
+			offsets[i] = base + record_bytes.size();
+			byte[][] r = records.get(i);
+			record_bytes.write(r[0]);
+			record_bytes.write(0);
+			record_bytes.write(r[1]);
+			record_bytes.write('\n');
+		}
+		ByteArrayOutputStream section = new ByteArrayOutputStream(base + record_bytes.size());
+		DataOutputStream out = new DataOutputStream(section);
+		out.writeInt(offsets.length);
+		for (int o : offsets)
+			out.writeInt(o);
+		record_bytes.writeTo(out);
+		out.flush();
+		return section.toByteArray();
+	}
+
+	private final ByteBuffer buffer;
+
+	/**
+	 * Map each section name to its length
+	 */
+	private final Map<String, Integer> section_lengths;
+
+	/**
+	 * Map each section name to its offset in {@link #buffer}
+	 */
+	private final Map<String, Integer> section_offsets;
+
+	private AssetBundle(ByteBuffer buffer) {
+		this.buffer = buffer;
+		int num_sections = buffer.getInt();
+		section_offsets = new LinkedHashMap<String, Integer>();
+		section_lengths = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < num_sections; i++) {
+			byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+			String section = new String(name, UTF8);
+			int offset = buffer.getInt(), length = buffer.getInt();
+			if (offset < 0 || length < 0 || offset > buffer.limit() - length)
+				throw new IllegalArgumentException("Section " + section + " out of the bundle");
+			section_offsets.put(section, offset);
+			section_lengths.put(section, length);
+		}
+	}
+
+	/**
+	 * Look up the value of a key
+	 *
+	 * @param section
+	 *            Name of the section
+	 * @param key
+	 *            The key to look up
+	 * @return The value associated with the key or {@code null} if the section or the key does not exist
+	 */
+	public String get(String section, String key) {
+		Integer base = section_offsets.get(section);
+		if (base == null)
+			return null;
+		byte[] key_bytes = key.getBytes(UTF8);
+		byte[] temp = new byte[key_bytes.length + 1];
+		int lo = 0, hi = buffer.getInt(base) - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int record = base + buffer.getInt(base + 4 + 4 * mid);
+			// Compare at most one byte beyond the query key to tell a longer key apart
+			int n = 0;
+			byte b;
+			while (n < temp.length && (b = buffer.get(record + n)) != 0)
+				temp[n++] = b;
+			int c = compareBytes(temp, n, key_bytes);
+			if (c < 0)
+				lo = mid + 1;
+			else if (c > 0)
+				hi = mid - 1;
+			else
+				return readUntil(record + n + 1, (byte) '\n');
+		}
+		return null;
+	}
+
+	/**
+	 * Get the key of a record
+	 *
+	 * @param section
+	 *            Name of the section
+	 * @param index
+	 *            Position of the record, records are sorted by their keys
+	 * @return The key of the record
+	 */
+	public String getKey(String section, int index) {
+		int base = section_offsets.get(section);
+		return readUntil(base + buffer.getInt(base + 4 + 4 * index), (byte) 0);
+	}
+
+	/**
+	 * Get the value of a record
+	 *
+	 * @param section
+	 *            Name of the section
+	 * @param index
+	 *            Position of the record, records are sorted by their keys
+	 * @return The value of the record
+	 */
+	public String getValue(String section, int index) {
+		int record = section_offsets.get(section) + buffer.getInt(section_offsets.get(section) + 4 + 4 * index);
+		while (buffer.get(record) != 0)
+			record++;
+		return readUntil(record + 1, (byte) '\n');
+	}
+
+	/**
+	 * Get the raw bytes of a section
+	 *
+	 * @param section
+	 *            Name of the section
+	 * @return A read-only view of the section or {@code null} if the section does not exist
+	 */
+	public ByteBuffer getSection(String section) {
+		Integer base = section_offsets.get(section);
+		if (base == null)
+			return null;
+		ByteBuffer data = buffer.asReadOnlyBuffer();
+		data.limit(base + section_lengths.get(section));
+		data.position(base);
+		return data.slice();
+	}
+
+	/**
+	 * Get the checksum of the text assets the bundle is compiled from
+	 *
+	 * @return The checksum or {@code null} if the bundle does not have it
+	 */
+	public String getSourceChecksum() {
+		ByteBuffer data = getSection(SECTION_SOURCE_CHECKSUM);
+		if (data == null)
+			return null;
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	public boolean hasSection(String section) {
+		return section_offsets.containsKey(section);
+	}
+
+	private String readUntil(int position, byte terminator) {
+		int end = position;
+		while (buffer.get(end) != terminator)
+			end++;
+		byte[] bytes = new byte[end - position];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(position + i);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Get the number of records in a section
+	 *
+	 * @param section
+	 *            Name of the section
+	 * @return Number of records or 0 if the section does not exist
+	 */
+	public int size(String section) {
+		Integer base = section_offsets.get(section);
+		return base == null ? 0 : buffer.getInt(base);
+	}
+
+}
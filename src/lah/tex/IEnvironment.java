@@ -12,6 +12,12 @@ public interface IEnvironment extends TaskStateListener<Task> {
 	public static final String LAHTEX_DEPEND = "depend.lahtex", LAHTEX_INDEX = "index.lahtex",
 			LAHTEX_DESC = "desc.lahtex", LAHTEX_DBKEYS = "dbkeys.lahtex";
 
+	/**
+	 * Precompiled {@link AssetBundle} of the above assets, looked up in the directory "tlpkg" of the TeX root; the
+	 * assets are read with {@link #readLahTeXAsset(String)} if it does not exist
+	 */
+	public static final String LAHTEX_BUNDLE = "lahtex.bundle";
+
 	String getArchitecture();
 
 	String getBusyBox() throws Exception;
@@ -1,12 +1,20 @@
 package lah.tex;
 
 import java.io.File;
+import java.io.IOException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import lah.spectre.interfaces.IResult;
 import lah.spectre.multitask.TaskState;
@@ -14,7 +22,10 @@ import lah.spectre.process.TimedShell;
 import lah.spectre.stream.Streams;
 import lah.tex.exceptions.SolvableException;
 import lah.tex.exceptions.TeXMFFileNotFoundException;
+import lah.tex.manage.BloomFilter;
+import lah.tex.manage.KpathseaResolver;
 import lah.tex.manage.MakeLSR;
+import lah.tex.manage.PackageFileIndex;
 
 /**
  * Base class for a LAHTeX task.
@@ -24,8 +35,17 @@ import lah.tex.manage.MakeLSR;
  */
 public abstract class Task implements IResult, lah.spectre.multitask.Task {
 
+	private static volatile AssetBundle asset_bundle;
+
+	/**
+	 * Whether we have attempted to open the {@link #asset_bundle}, so that a missing bundle is only checked once
+	 */
+	private static volatile boolean asset_bundle_loaded;
+
 	protected static IEnvironment environment;
 
+	private static volatile KpathseaResolver kpathsea_resolver;
+
 	protected static MakeLSR make_lsr_task;
 
 	/**
@@ -33,12 +53,24 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 	 */
 	private static final int MAX_NUM_SOLVABLE_EXCEPTIONS = 100;
 
+	private static final Pattern single_space_pattern = Pattern.compile(" ");
+
 	/**
-	 * The content of the text file "index", each line is of format
+	 * Inverted index of the text file "index", each line of which is of format
 	 * {@code [package_name]/[file_1]/[file_2]/.../[file_n]/} where {@code [file_1], [file_2], ..., [file_n]} are all
 	 * files contained in a package with name {@code [package_name]}.
 	 */
-	private static String package_file_index;
+	private static volatile PackageFileIndex package_file_index;
+
+	/**
+	 * Filter of the files contained in some package, to quickly reject queries for other files
+	 */
+	private static volatile BloomFilter package_file_filter;
+
+	/**
+	 * Whether we have attempted to read the {@link #package_file_filter}, so that a missing filter is only checked once
+	 */
+	private static volatile boolean package_file_filter_loaded;
 
 	/**
 	 * Single instance of {@link TimedShell} for command execution
@@ -66,6 +98,27 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 		}
 	}
 
+	/**
+	 * Export the environment variables of the programs to a shell
+	 * 
+	 * @param shell
+	 *            The shell
+	 * @param tmpdir
+	 *            Temporary directory of the programs
+	 */
+	private static void exportEnvironment(TimedShell shell, String tmpdir) {
+		String texmf_root = environment.getTeXMFRootDirectory();
+		String texmf_bin = environment.getTeXMFBinaryDirectory();
+		String path = texmf_bin + ":" + System.getenv("PATH");
+		String fontconfig_path = texmf_root + "/texmf-var/fonts/conf";
+		new File(fontconfig_path + "/").mkdirs();
+		shell.export("PATH", path);
+		shell.export("TMPDIR", tmpdir);
+		shell.export("FONTCONFIG_PATH", fontconfig_path);
+		shell.export("OSFONTDIR", Task.environment.getOSFontsDirectory());
+		shell.export("TEXMFCNF", texmf_root + "/texmf-var" + ":" + texmf_root + "/texmf/web2c");
+	}
+
 	/**
 	 * Find all packages containing a file
 	 * 
@@ -75,24 +128,166 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 	 * @throws Exception
 	 */
 	public static String[] findPackagesWithFile(String file_query) throws Exception {
-		if (package_file_index == null) {
-			package_file_index = environment.readLahTeXAsset(IEnvironment.LAHTEX_INDEX);
+		BloomFilter filter = getPackageFileFilter();
+		if (filter != null && !filter.mightContain(file_query))
+			return null;
+		AssetBundle bundle = getAssetBundle();
+		if (bundle != null && bundle.hasSection(AssetBundle.SECTION_FILE_INDEX)) {
+			String packages = bundle.get(AssetBundle.SECTION_FILE_INDEX, file_query);
+			return packages == null ? null : single_space_pattern.split(packages);
 		}
-		LinkedList<String> res = new LinkedList<String>();
-		int k = 0;
-		file_query = "/" + file_query + "/";
-		while ((k = package_file_index.indexOf(file_query, k)) >= 0) {
-			int j = k;
-			while (j >= 0 && package_file_index.charAt(j) != '\n')
-				j--;
-			j++;
-			int i = j;
-			while (package_file_index.charAt(i) != '/')
-				i++;
-			k++;
-			res.add(package_file_index.substring(j, i));
+		return getPackageFileIndex().get(file_query);
+	}
+
+	/**
+	 * Find the packages containing each of a collection of files, loading the index only once for the whole batch
+	 * 
+	 * @param file_queries
+	 *            Files to search for
+	 * @return Map each file that is found to the list of names of packages containing it, in the order of the queries
+	 * @throws Exception
+	 */
+	public static Map<String, String[]> findPackagesWithFiles(Collection<String> file_queries) throws Exception {
+		Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+		BloomFilter filter = getPackageFileFilter();
+		if (filter != null) {
+			List<String> candidates = new ArrayList<String>(file_queries.size());
+			for (String file_query : file_queries) {
+				if (filter.mightContain(file_query))
+					candidates.add(file_query);
+			}
+			file_queries = candidates;
+		}
+		AssetBundle bundle = getAssetBundle();
+		if (bundle != null && bundle.hasSection(AssetBundle.SECTION_FILE_INDEX)) {
+			for (String file_query : file_queries) {
+				String packages = bundle.get(AssetBundle.SECTION_FILE_INDEX, file_query);
+				if (packages != null)
+					result.put(file_query, single_space_pattern.split(packages));
+			}
+		} else {
+			getPackageFileIndex().getAll(file_queries, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the precompiled assets; the bundle is only used if it is compiled from the current text assets, which are
+	 * therefore read (but not parsed) once to be checksummed
+	 *
+	 * @return The memory-mapped {@link AssetBundle} or {@code null} if there is no (valid) bundle, in which case the
+	 *         assets should be read via {@link IEnvironment#readLahTeXAsset(String)}
+	 * @throws Exception
+	 */
+	protected static AssetBundle getAssetBundle() throws Exception {
+		if (!asset_bundle_loaded) {
+			synchronized (Task.class) {
+				if (!asset_bundle_loaded) {
+					File bundle_file = new File(environment.getTeXMFRootDirectory() + "/tlpkg/"
+							+ IEnvironment.LAHTEX_BUNDLE);
+					if (bundle_file.isFile()) {
+						Map<String, String> assets = new LinkedHashMap<String, String>();
+						for (String asset : AssetBundle.ASSETS) {
+							try {
+								String content = environment.readLahTeXAsset(asset);
+								if (content != null)
+									assets.put(asset, content);
+							} catch (Exception e) {
+								// a missing asset is not in the bundle either
+							}
+						}
+						try {
+							asset_bundle = AssetBundle.open(bundle_file, AssetBundle.checksum(assets));
+						} catch (IOException e) {
+							// use the text assets
+							e.printStackTrace(System.out);
+						}
+					}
+					asset_bundle_loaded = true;
+				}
+			}
+		}
+		return asset_bundle;
+	}
+
+	/**
+	 * Get the resolver of input files from the ls-R databases
+	 * 
+	 * @return The {@link KpathseaResolver} of the TeX directory
+	 */
+	public static KpathseaResolver getKpathseaResolver() {
+		KpathseaResolver resolver = kpathsea_resolver;
+		if (resolver == null) {
+			synchronized (Task.class) {
+				resolver = kpathsea_resolver;
+				if (resolver == null)
+					kpathsea_resolver = resolver = new KpathseaResolver(environment.getTeXMFRootDirectory());
+			}
+		}
+		return resolver;
+	}
+
+	/**
+	 * Get the filter of all files contained in some package, precomputed in the asset bundle (with the false positive
+	 * rate given to {@link AssetBundle#compile(Map, File, double)}) and read in place. The counters of the filter tell
+	 * how many lookups are short circuited.
+	 * 
+	 * There is no filter without a bundle: the in-heap index then answers in constant time anyway, and building the
+	 * filter from the index of an older bundle would decode every file name on the first lookup.
+	 * 
+	 * @return The {@link BloomFilter} of all files in the package index or {@code null} if the bundle has none
+	 * @throws Exception
+	 */
+	public static BloomFilter getPackageFileFilter() throws Exception {
+		if (!package_file_filter_loaded) {
+			synchronized (Task.class) {
+				if (!package_file_filter_loaded) {
+					AssetBundle bundle = getAssetBundle();
+					if (bundle != null && bundle.hasSection(AssetBundle.SECTION_FILE_FILTER))
+						package_file_filter = BloomFilter.read(bundle.getSection(AssetBundle.SECTION_FILE_FILTER));
+					package_file_filter_loaded = true;
+				}
+			}
 		}
-		return res.size() > 0 ? res.toArray(new String[res.size()]) : null;
+		return package_file_filter;
+	}
+
+	/**
+	 * Get the file-to-package index, loading it on first use
+	 *
+	 * @return The index of all files contained in the packages
+	 * @throws Exception
+	 */
+	private static PackageFileIndex getPackageFileIndex() throws Exception {
+		PackageFileIndex index = package_file_index;
+		if (index == null) {
+			synchronized (Task.class) {
+				index = package_file_index;
+				if (index == null)
+					package_file_index = index = PackageFileIndex.load(environment
+							.readLahTeXAsset(IEnvironment.LAHTEX_INDEX));
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Get the files in a directory
+	 * 
+	 * @param dir
+	 *            The directory
+	 * @return Absolute paths of the regular files in the directory (not in sub-directories)
+	 */
+	protected static List<String> listFiles(File dir) {
+		List<String> files = new ArrayList<String>();
+		File[] dir_files = dir.listFiles();
+		if (dir_files != null) {
+			for (File f : dir_files) {
+				if (f.isFile())
+					files.add(f.getAbsolutePath());
+			}
+		}
+		return files;
 	}
 
 	/**
@@ -110,28 +305,40 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 							+ (environment.isPortable() ? "TEXMFVAR = $TEXMFSYSVAR\n" : ""), texmfcnf_file, false);
 	}
 
+	/**
+	 * Create a shell with the same environment as {@link #shell} but its own temporary directory, for tasks running
+	 * concurrently
+	 * 
+	 * @param tmpdir
+	 *            Temporary directory of the programs run in the shell
+	 * @return The new shell
+	 */
+	protected static TimedShell newShell(File tmpdir) {
+		TimedShell new_shell = new TimedShell();
+		exportEnvironment(new_shell, tmpdir.getAbsolutePath());
+		return new_shell;
+	}
+
 	/**
 	 * Set up environment variables such as PATH, TMPDIR and FONTCONFIG (for XeTeX to work), OSFONTDIR (for LuaTeX
 	 * system font search) and TEXMFCNF (kpathsea path configuration search dirs)
 	 */
 	static void setupEnvironment() {
 		String texmf_root = environment.getTeXMFRootDirectory();
-		String texmf_bin = environment.getTeXMFBinaryDirectory();
-		String path = texmf_bin + ":" + System.getenv("PATH");
 		String tmpdir = texmf_root + "/texmf-var/tmp";
 		new File(tmpdir + "/").mkdirs();
-		String fontconfig_path = texmf_root + "/texmf-var/fonts/conf";
-		new File(fontconfig_path + "/").mkdirs();
-		shell.export("PATH", path);
-		shell.export("TMPDIR", tmpdir);
-		shell.export("FONTCONFIG_PATH", fontconfig_path);
-		shell.export("OSFONTDIR", Task.environment.getOSFontsDirectory());
-		shell.export("TEXMFCNF", texmf_root + "/texmf-var" + ":" + texmf_root + "/texmf/web2c");
+		exportEnvironment(shell, tmpdir);
 		texmfcnf_file = new File(texmf_root + "/texmf-var/texmf.cnf");
 		texmfcnf_src = new File(texmf_root + "/texmf/web2c/texmf.cnf");
+		kpathsea_resolver = null;
 		strings = ResourceBundle.getBundle("lah.tex.translate.strings", environment.getLocale());
 	}
 
+	/**
+	 * Whether the solution of a {@link SolvableException} raised by this task is scheduled automatically
+	 */
+	private boolean auto_solve = true;
+
 	private ConcurrentLinkedQueue<Task> dependent_tasks;
 
 	protected Exception exception;
@@ -142,6 +349,11 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 
 	private TaskGroup task_group;
 
+	/**
+	 * Shell to run the programs of this task in, {@code null} for the shared {@link #shell}
+	 */
+	private TimedShell task_shell;
+
 	protected Task() {
 		dependent_tasks = new ConcurrentLinkedQueue<Task>();
 		setState(TaskState.PENDING);
@@ -151,6 +363,21 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 		dependent_tasks.add(task);
 	}
 
+	/**
+	 * Add a task run directly by this task (rather than scheduled) to the group of this task, for clients to follow;
+	 * the subordinated task runs its programs in the shell of this task
+	 * 
+	 * @param task
+	 *            The subordinated task
+	 */
+	protected void addSubordinatedTask(Task task) {
+		TaskGroup group = task_group;
+		task.setGroup(group);
+		task.task_shell = task_shell;
+		if (group != null && !group.subordinated_tasks.contains(task))
+			group.subordinated_tasks.add(task);
+	}
+
 	public abstract String getDescription();
 
 	@Override
@@ -162,6 +389,13 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 		return task_group;
 	}
 
+	/**
+	 * Get the shell to run the programs of this task in
+	 */
+	protected TimedShell getShell() {
+		return task_shell != null ? task_shell : shell;
+	}
+
 	public String getStatusString() {
 		switch (state) {
 		case PENDING:
@@ -229,15 +463,40 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 		// solvable_exceptions.clear();
 	}
 
+	/**
+	 * Wait for a refresh of the ls-R files and complete this task accordingly
+	 * 
+	 * @param refresh
+	 *            Future of the refresh
+	 */
+	private void completeAfterMakeLSR(Future<Void> refresh) {
+		try {
+			refresh.get();
+			setState(TaskState.COMPLETE);
+		} catch (ExecutionException e) {
+			setException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+		} catch (InterruptedException e) {
+			setException(e);
+		}
+	}
+
 	/**
 	 * Regenerate the ls-R files. This MUST be called lastly.
 	 */
 	protected void runFinalMakeLSR() {
-		make_lsr_task.run();
-		if (make_lsr_task.hasException())
-			setException(make_lsr_task.getException());
-		else
-			setState(TaskState.COMPLETE);
+		completeAfterMakeLSR(make_lsr_task.requestRefresh());
+	}
+
+	/**
+	 * Update the ls-R files with the files added and removed by this task. This MUST be called lastly.
+	 * 
+	 * @param added_files
+	 *            Absolute paths of the added files
+	 * @param removed_files
+	 *            Absolute paths of the removed files and directories
+	 */
+	protected void runFinalMakeLSR(Collection<String> added_files, Collection<String> removed_files) {
+		completeAfterMakeLSR(make_lsr_task.requestRefresh(added_files, removed_files));
 	}
 
 	/**
@@ -248,7 +507,7 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 	protected final synchronized void setException(Exception exception) {
 		this.exception = exception;
 		setState(TaskState.ERROR);
-		if (exception instanceof SolvableException) {
+		if (exception instanceof SolvableException && auto_solve) {
 			// Exception is already encountered
 			if (solvable_exceptions.contains(exception)) {
 				this.exception = new Exception(MessageFormat.format(strings.getString("exception_encounter_again"),
@@ -279,10 +538,32 @@ public abstract class Task implements IResult, lah.spectre.multitask.Task {
 		}
 	}
 
+	/**
+	 * Set whether the solution of a {@link SolvableException} raised by this task is scheduled automatically; a task
+	 * running this task directly can turn it off to handle the exception itself
+	 * 
+	 * @param auto_solve
+	 *            {@code true} (the default) to schedule the solution and rerun this task after it
+	 */
+	public void setAutoSolve(boolean auto_solve) {
+		this.auto_solve = auto_solve;
+	}
+
 	void setGroup(TaskGroup group) {
 		this.task_group = group;
 	}
 
+	/**
+	 * Run the programs of this task in a shell of its own, e.g. one with a different environment, instead of the shared
+	 * one
+	 * 
+	 * @param task_shell
+	 *            The shell or {@code null} for the shared shell
+	 */
+	public void setShell(TimedShell task_shell) {
+		this.task_shell = task_shell;
+	}
+
 	protected final synchronized void setState(TaskState state) {
 		if (state != this.state) {
 			this.state = state;
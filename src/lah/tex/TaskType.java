@@ -7,6 +7,10 @@ package lah.tex;
  * 
  */
 public enum TaskType {
+	/**
+	 * Build a document, running the engine as many times as necessary together with BibTeX and MakeIndex
+	 */
+	BUILD,
 	/**
 	 * Compile a document
 	 */
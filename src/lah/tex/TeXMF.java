@@ -1,17 +1,33 @@
 package lah.tex;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lah.spectre.multitask.ScheduleTaskManager;
 import lah.spectre.process.TimedShell;
 import lah.spectre.stream.StreamRedirector;
+import lah.tex.compile.BuildDocument;
 import lah.tex.compile.CompileDocument;
 import lah.tex.manage.InstallPackage;
+import lah.tex.manage.LsRWatcher;
 import lah.tex.manage.MakeFontConfigurations;
 import lah.tex.manage.MakeLSR;
 import lah.tex.manage.MakeLanguageConfigurations;
@@ -50,14 +66,58 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 	 */
 	private static final Pattern package_key_pattern = Pattern.compile("([^ ]+) (.*)\n");
 
+	/**
+	 * Time (in milliseconds) to wait for further changes in the texmf directories before updating the ls-R files
+	 */
+	private static final long LSR_WATCHER_DEBOUNCE_DELAY = 500;
+
+	/**
+	 * Maximum time (in milliseconds) to delay an update of the ls-R files during a continuous burst of changes
+	 */
+	private static final long LSR_WATCHER_MAX_DELAY = 5000;
+
 	private static TeXMF texmf_instance;
 
+	/**
+	 * Delete the scratch directory of a concurrent task
+	 */
+	private static void deleteScratchDirectory(File dir) throws IOException {
+		Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+				Files.deleteIfExists(d);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.deleteIfExists(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+	}
+
 	public static final TeXMF getInstance(IEnvironment environment) {
 		if (texmf_instance == null)
 			texmf_instance = new TeXMF(environment);
 		return texmf_instance;
 	}
 
+	/**
+	 * Executor of the tasks run by {@link #runConcurrently(Collection)}, created on first use
+	 */
+	private ExecutorService concurrent_executor;
+
+	private LsRWatcher lsR_watcher;
+
+	/**
+	 * Maximum number of tasks run at the same time by {@link #runConcurrently(Collection)}, by default the number of
+	 * processors
+	 */
+	private int max_concurrent_tasks = Runtime.getRuntime().availableProcessors();
+
 	private Map<Integer, TaskGroup> task_group_id_map;
 
 	private List<TaskGroup> task_groups;
@@ -90,6 +150,23 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 		enqueue(task);
 	}
 
+	/**
+	 * Compile several documents at the same time
+	 * 
+	 * @param tex_engine
+	 *            The engine (or format) to compile the documents with
+	 * @param tex_srcs
+	 *            The main source files of the documents
+	 * @return The future of the compilation of each document, in the same order
+	 * @see #runConcurrently(Collection)
+	 */
+	public List<Future<CompileDocument>> compileAll(String tex_engine, Collection<String> tex_srcs) {
+		List<CompileDocument> documents = new ArrayList<CompileDocument>(tex_srcs.size());
+		for (String tex_src : tex_srcs)
+			documents.add(new CompileDocument(tex_engine, tex_src));
+		return runConcurrently(documents);
+	}
+
 	/**
 	 * Create a new task and submit for scheduled execution
 	 * 
@@ -102,6 +179,9 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 	public Task createTask(TaskType task_type, String[] args) {
 		Task result_task;
 		switch (task_type) {
+		case BUILD:
+			result_task = new BuildDocument(args[0], args[1]);
+			break;
 		case COMPILE:
 			result_task = new CompileDocument(args[0], args[1]);
 			break;
@@ -129,6 +209,23 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 		return result_task;
 	}
 
+	private synchronized ExecutorService getConcurrentExecutor() {
+		if (concurrent_executor == null)
+			concurrent_executor = Executors.newFixedThreadPool(max_concurrent_tasks, new ThreadFactory() {
+
+				private final AtomicInteger num_created = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "concurrent-task-" + num_created.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+
+			});
+		return concurrent_executor;
+	}
+
 	/**
 	 * Generate the dropbox URL for a package
 	 * 
@@ -138,6 +235,22 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 	 * @throws Exception
 	 */
 	public String getDropboxPackageURL(String package_name) throws Exception {
+		String key = getPackageRevision(package_name);
+		return (key == null ? null : DROPBOX_ARCHIVE + key + "/" + package_name + InstallPackage.PACKAGE_EXTENSION);
+	}
+
+	/**
+	 * Get the revision of a package i.e. its Dropbox's hash key, which changes whenever the package is updated
+	 * 
+	 * @param package_name
+	 *            Name of package
+	 * @return The revision or {@code null} if the package is unknown
+	 * @throws Exception
+	 */
+	public String getPackageRevision(String package_name) throws Exception {
+		AssetBundle bundle = Task.getAssetBundle();
+		if (bundle != null && bundle.hasSection(IEnvironment.LAHTEX_DBKEYS))
+			return bundle.get(IEnvironment.LAHTEX_DBKEYS, package_name);
 		if (dropbox_keys_map == null) {
 			Map<String, String> temp_dropbox_keys_map = new TreeMap<String, String>();
 			String dbkeys = Task.environment.readLahTeXAsset(IEnvironment.LAHTEX_DBKEYS);
@@ -146,8 +259,7 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 				temp_dropbox_keys_map.put(matcher.group(1), matcher.group(2));
 			dropbox_keys_map = temp_dropbox_keys_map;
 		}
-		String key = (dropbox_keys_map == null ? null : dropbox_keys_map.get(package_name));
-		return (key == null ? null : DROPBOX_ARCHIVE + key + "/" + package_name + InstallPackage.PACKAGE_EXTENSION);
+		return (dropbox_keys_map == null ? null : dropbox_keys_map.get(package_name));
 	}
 
 	/**
@@ -216,6 +328,101 @@ public class TeXMF extends ScheduleTaskManager<Task> {
 		}
 	}
 
+	/**
+	 * Run independent tasks (e.g. compilations of different documents) at the same time, at most
+	 * {@link #setMaxConcurrentTasks(int)} of them. Unlike the scheduled tasks, each task runs its programs in a shell
+	 * of its own with a private temporary directory, removed when the task is done, so that the tasks do not share
+	 * their process environment. The tasks are not added to the task groups and the solutions of their exceptions
+	 * (e.g. missing packages) are not scheduled: a failed task completes its future with its exception set.
+	 * 
+	 * @param tasks
+	 *            The tasks
+	 * @return The future of each task, in the same order, which gives the task once it is done
+	 */
+	public <T extends Task> List<Future<T>> runConcurrently(Collection<T> tasks) {
+		ExecutorService executor = getConcurrentExecutor();
+		final File tmpdir = new File(Task.environment.getTeXMFRootDirectory() + "/texmf-var/tmp");
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (final T task : tasks) {
+			task.setAutoSolve(false);
+			futures.add(executor.submit(new Callable<T>() {
+
+				@Override
+				public T call() throws Exception {
+					tmpdir.mkdirs();
+					File scratch_dir;
+					try {
+						scratch_dir = Files.createTempDirectory(tmpdir.toPath(), "task").toFile();
+					} catch (IOException e) {
+						task.setException(e);
+						return task;
+					}
+					try {
+						task.setShell(Task.newShell(scratch_dir));
+						task.run();
+					} finally {
+						task.setShell(null);
+						try {
+							deleteScratchDirectory(scratch_dir);
+						} catch (IOException e) {
+							// the task is done, a leftover in the temporary directory does not matter
+							e.printStackTrace(System.out);
+						}
+					}
+					return task;
+				}
+
+			}));
+		}
+		return futures;
+	}
+
+	/**
+	 * Set the maximum number of tasks run at the same time by {@link #runConcurrently(Collection)}; tasks already
+	 * submitted run with the previous setting
+	 * 
+	 * @param max_tasks
+	 *            Maximum number of concurrent tasks, e.g. the number of processors for compilations
+	 */
+	public synchronized void setMaxConcurrentTasks(int max_tasks) {
+		max_concurrent_tasks = Math.max(1, max_tasks);
+		if (concurrent_executor != null)
+			concurrent_executor.shutdown();
+		concurrent_executor = null;
+	}
+
+	/**
+	 * Get the background maintainer of the ls-R files
+	 * 
+	 * @return The maintainer or {@code null} if {@link #startLsRWatcher()} is never called
+	 */
+	public synchronized LsRWatcher getLsRWatcher() {
+		return lsR_watcher;
+	}
+
+	/**
+	 * Start updating the ls-R files in the background when files are added to or removed from the texmf directories
+	 * by other programs
+	 * 
+	 * @return The maintainer, exposing the delay of the updates
+	 * @throws IOException
+	 */
+	public synchronized LsRWatcher startLsRWatcher() throws IOException {
+		if (lsR_watcher == null)
+			lsR_watcher = new LsRWatcher(Task.make_lsr_task, Task.environment.getTeXMFRootDirectory(),
+					LSR_WATCHER_DEBOUNCE_DELAY, LSR_WATCHER_MAX_DELAY);
+		lsR_watcher.start();
+		return lsR_watcher;
+	}
+
+	/**
+	 * Stop updating the ls-R files in the background
+	 */
+	public synchronized void stopLsRWatcher() {
+		if (lsR_watcher != null)
+			lsR_watcher.stop();
+	}
+
 	/**
 	 * Unmount the temporary file system
 	 * 
@@ -0,0 +1,333 @@
+package lah.tex.compile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.spectre.FileName;
+import lah.spectre.multitask.TaskState;
+import lah.spectre.stream.Streams;
+import lah.tex.Task;
+
+/**
+ * Task to build a document: run the engine as many times as necessary for the cross-references to settle, together
+ * with BibTeX and MakeIndex when the document needs them.
+ *
+ * Another pass is run when a pass changes one of the auxiliary files or asks for a rerun in its log. Passes whose
+ * output is surely discarded are run in draft mode (no PDF is written) if the engine supports it, and BibTeX and
+ * MakeIndex run concurrently. Each pass is a {@link CompileDocument} added to the group of this task.
+ *
+ * @author L.A.H.
+ *
+ */
+public class BuildDocument extends Task {
+
+	/**
+	 * Auxiliary files whose change requires another pass
+	 */
+	private static final String[] aux_extensions = { "aux", "toc", "lof", "lot", "bbl", "idx" };
+
+	/**
+	 * Index of the .bbl file in {@link #aux_extensions}
+	 */
+	private static final int BBL = 4;
+
+	/**
+	 * Lines of the .aux file read by BibTeX
+	 */
+	private static final Pattern bibtex_aux_pattern = Pattern.compile("\\\\(citation|bibdata|bibstyle)\\{.*");
+
+	/**
+	 * Number of engine passes of the usual fixed sequence engine, BibTeX, engine, engine
+	 */
+	private static final int FIXED_SEQUENCE_PASSES = 3;
+
+	private static final Pattern input_aux_pattern = Pattern.compile("\\\\@input\\{([^}]*)\\}");
+
+	/**
+	 * Maximum number of passes, in case the document never settles
+	 */
+	private static final int MAX_PASSES = 6;
+
+	private static final Pattern rerun_pattern = Pattern.compile("Rerun to get|Rerun LaTeX|rerun LaTeX");
+
+	/**
+	 * Get the option to run an engine without writing the output
+	 *
+	 * @return The option or {@code null} if the engine has no draft mode
+	 */
+	private static String getDraftModeOption(String tex_engine) {
+		if (tex_engine.startsWith("pdf") || tex_engine.startsWith("lua"))
+			return "-draftmode";
+		else if (tex_engine.startsWith("xe"))
+			return "-no-pdf";
+		return null;
+	}
+
+	/**
+	 * Checksum of the lines of the .aux file read by BibTeX (also those of the .aux files it includes, e.g. for
+	 * {@code \include}'d files) at the last run of BibTeX
+	 */
+	private String bibtex_input_checksum;
+
+	private boolean cache_result;
+
+	private CompileDocument last_pass;
+
+	/**
+	 * Checksum of the .idx file at the last run of MakeIndex
+	 */
+	private String makeindex_input_checksum;
+
+	private int num_draft_passes, num_passes;
+
+	private boolean precompile_preamble;
+
+	private final String tex_engine;
+
+	private final File tex_src_file;
+
+	/**
+	 * Path of the source file without extension
+	 */
+	private final String tex_src_base;
+
+	public BuildDocument(String tex_engine, String tex_src) {
+		this.tex_engine = tex_engine;
+		this.tex_src_file = new File(tex_src);
+		this.tex_src_base = new File(tex_src_file.getParentFile(), FileName.removeFileExtension(tex_src_file
+				.getName())).getPath();
+	}
+
+	/**
+	 * Append the lines read by BibTeX of an .aux file and of the .aux files it includes
+	 */
+	private void appendBibTeXInput(File aux_file, StringBuilder input, int depth) throws IOException {
+		if (!aux_file.isFile() || depth > 8)
+			return;
+		String content = Streams.readTextFile(aux_file);
+		for (String line : content.split("\n")) {
+			Matcher matcher;
+			if (bibtex_aux_pattern.matcher(line).matches())
+				input.append(line).append('\n');
+			else if ((matcher = input_aux_pattern.matcher(line)).find())
+				appendBibTeXInput(new File(aux_file.getParentFile(), matcher.group(1)), input, depth + 1);
+		}
+	}
+
+	/**
+	 * Compute the checksums of the auxiliary files
+	 */
+	private String[] getAuxiliaryChecksums() throws IOException {
+		String[] checksums = new String[aux_extensions.length];
+		for (int i = 0; i < aux_extensions.length; i++)
+			checksums[i] = Checksums.sha1(getFile(aux_extensions[i]));
+		return checksums;
+	}
+
+	@Override
+	public String getDescription() {
+		return strings.getString("desc_build_document_") + tex_src_file.getName();
+	}
+
+	private File getFile(String extension) {
+		return new File(tex_src_base + "." + extension);
+	}
+
+	public int getNumberOfDraftPasses() {
+		return num_draft_passes;
+	}
+
+	/**
+	 * Get the number of engine passes, including the draft passes
+	 */
+	public int getNumberOfPasses() {
+		return num_passes;
+	}
+
+	/**
+	 * Get the number of full engine passes saved compared to the usual fixed sequence engine, BibTeX, engine, engine;
+	 * this is negative if the document needs more passes than that sequence runs
+	 */
+	public int getNumberOfPassesSaved() {
+		return FIXED_SEQUENCE_PASSES - (num_passes - num_draft_passes);
+	}
+
+	/**
+	 * Get the output of the build i.e. that of the last pass
+	 *
+	 * @return The output file or {@code null} if no pass is run yet
+	 */
+	public File getOutputFile() {
+		return last_pass == null ? null : last_pass.getOutputFile();
+	}
+
+	/**
+	 * Test whether the log of a pass asks for a rerun; the messages can be wrapped so a warning line is checked
+	 * together with the next two lines
+	 */
+	private boolean hasRerunWarning(CompileDocument pass) {
+		int index;
+		for (int n = 0; (index = pass.getLogLineIndex(LogLine.LEVEL_WARNING, n)) >= 0; n++) {
+			StringBuilder message = new StringBuilder();
+			for (int i = index; i < index + 3; i++) {
+				LogLine line = pass.getLogLine(i);
+				if (line != null)
+					message.append(line.getDescription());
+			}
+			if (rerun_pattern.matcher(message).find())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		num_passes = num_draft_passes = 0;
+		bibtex_input_checksum = makeindex_input_checksum = null;
+	}
+
+	@Override
+	public void run() {
+		reset();
+		setState(TaskState.EXECUTING);
+		if (!tex_src_file.exists()) {
+			setException(new FileNotFoundException(MessageFormat.format(
+					strings.getString("exception_input_file_not_exist"), tex_src_file)));
+			return;
+		}
+		try {
+			String draft_option = getDraftModeOption(tex_engine);
+			String[] checksums = getAuxiliaryChecksums();
+			// a first pass without auxiliary file only serves to write it
+			boolean draft = (draft_option != null && checksums[0] == null);
+			while (true) {
+				CompileDocument pass = new CompileDocument(tex_engine, tex_src_file.getPath());
+				if (draft)
+					pass.addOptions(draft_option);
+				pass.setCacheResult(cache_result);
+				pass.setPrecompilePreamble(precompile_preamble);
+				if (!runSubordinatedTask(pass))
+					return;
+				last_pass = pass;
+				num_passes++;
+				if (draft)
+					num_draft_passes++;
+				String[] new_checksums = getAuxiliaryChecksums();
+				boolean rerun = !Arrays.equals(checksums, new_checksums) || hasRerunWarning(pass);
+				if (runBibTeXAndMakeIndex())
+					rerun = true;
+				checksums = getAuxiliaryChecksums();
+				boolean bbl_changed = (checksums[BBL] != null && !checksums[BBL].equals(new_checksums[BBL]));
+				if (num_passes >= MAX_PASSES)
+					rerun = false;
+				if (!rerun) {
+					// the output of a draft pass is not written: run a final pass
+					if (!draft)
+						break;
+					draft = false;
+				} else
+					// the citations of a new bibliography change the .aux file so another pass follows anyway
+					draft = (draft_option != null && bbl_changed && num_passes + 1 < MAX_PASSES);
+			}
+			setState(TaskState.COMPLETE);
+		} catch (Exception e) {
+			setException(e);
+		}
+	}
+
+	/**
+	 * Run BibTeX and MakeIndex, concurrently if both are needed: BibTeX if the citations or the bibliography style
+	 * change and MakeIndex if the .idx file changes
+	 *
+	 * @return {@code true} if the .bbl or .ind file changes
+	 * @throws Exception
+	 */
+	private boolean runBibTeXAndMakeIndex() throws Exception {
+		StringBuilder bibtex_input = new StringBuilder();
+		appendBibTeXInput(getFile("aux"), bibtex_input, 0);
+		String bibtex_checksum = (bibtex_input.indexOf("\\bibdata{") < 0 ? null : Checksums.sha1(bibtex_input
+				.toString()));
+		String makeindex_checksum = Checksums.sha1(getFile("idx"));
+		CompileDocument bibtex = null, makeindex = null;
+		if (bibtex_checksum != null && (!bibtex_checksum.equals(bibtex_input_checksum) || !getFile("bbl").exists()))
+			bibtex = new CompileDocument("bibtex", tex_src_file.getPath());
+		if (makeindex_checksum != null
+				&& (!makeindex_checksum.equals(makeindex_input_checksum) || !getFile("ind").exists()))
+			makeindex = new CompileDocument("makeindex", tex_src_file.getPath());
+		if (bibtex == null && makeindex == null)
+			return false;
+		String bbl_checksum = Checksums.sha1(getFile("bbl")), ind_checksum = Checksums.sha1(getFile("ind"));
+		Thread makeindex_thread = null;
+		if (makeindex != null) {
+			addSubordinatedTask(makeindex);
+			makeindex.setAutoSolve(false);
+			if (bibtex != null) {
+				// the shell of this task is not reentrant, MakeIndex runs concurrently with BibTeX in a shell of its own
+				makeindex.setShell(newShell(new File(environment.getTeXMFRootDirectory() + "/texmf-var/tmp")));
+				makeindex_thread = new Thread(makeindex, "build-makeindex");
+				makeindex_thread.start();
+			} else
+				makeindex.run();
+		}
+		if (bibtex != null) {
+			addSubordinatedTask(bibtex);
+			bibtex.setAutoSolve(false);
+			bibtex.run();
+		}
+		if (makeindex_thread != null)
+			makeindex_thread.join();
+		if (bibtex != null && bibtex.hasException())
+			throw bibtex.getException();
+		if (makeindex != null && makeindex.hasException())
+			throw makeindex.getException();
+		if (bibtex != null)
+			bibtex_input_checksum = bibtex_checksum;
+		if (makeindex != null)
+			makeindex_input_checksum = makeindex_checksum;
+		String new_bbl_checksum = Checksums.sha1(getFile("bbl")), new_ind_checksum = Checksums.sha1(getFile("ind"));
+		return (bbl_checksum == null ? new_bbl_checksum != null : !bbl_checksum.equals(new_bbl_checksum))
+				|| (ind_checksum == null ? new_ind_checksum != null : !ind_checksum.equals(new_ind_checksum));
+	}
+
+	/**
+	 * Set whether the passes reuse the results of identical previous compilations
+	 *
+	 * @see CompileDocument#setCacheResult(boolean)
+	 */
+	public void setCacheResult(boolean cache_result) {
+		this.cache_result = cache_result;
+	}
+
+	/**
+	 * Set whether the passes compile the body of the document against a format of its preamble
+	 *
+	 * @see CompileDocument#setPrecompilePreamble(boolean)
+	 */
+	public void setPrecompilePreamble(boolean precompile_preamble) {
+		this.precompile_preamble = precompile_preamble;
+	}
+
+	/**
+	 * Run a pass; its exception, if any, becomes that of this task so that the solution (e.g. installing a missing
+	 * package) is scheduled before the whole build is run again
+	 *
+	 * @return {@code true} if the pass completes
+	 */
+	private boolean runSubordinatedTask(CompileDocument pass) {
+		addSubordinatedTask(pass);
+		pass.setAutoSolve(false);
+		pass.run();
+		if (pass.hasException()) {
+			setException(pass.getException());
+			return false;
+		}
+		return true;
+	}
+
+}
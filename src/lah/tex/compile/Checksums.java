@@ -0,0 +1,67 @@
+package lah.tex.compile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 checksums of files and strings, in hexadecimal
+ *
+ * @author L.A.H.
+ *
+ */
+final class Checksums {
+
+	private static String hex(byte[] hash) {
+		StringBuilder result = new StringBuilder(2 * hash.length);
+		for (byte b : hash)
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return result.toString();
+	}
+
+	static MessageDigest newDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Compute the checksum of a file
+	 *
+	 * @param file
+	 *            The file
+	 * @return The checksum or {@code null} if the file does not exist
+	 * @throws IOException
+	 */
+	static String sha1(File file) throws IOException {
+		if (!file.isFile())
+			return null;
+		MessageDigest digest = newDigest();
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int count;
+			while ((count = input.read(buffer)) > 0)
+				digest.update(buffer, 0, count);
+		} finally {
+			input.close();
+		}
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Compute the checksum of the UTF-8 encoding of a string
+	 */
+	static String sha1(String text) throws IOException {
+		return hex(newDigest().digest(text.getBytes("UTF-8")));
+	}
+
+	private Checksums() {
+	}
+
+}
@@ -0,0 +1,498 @@
+package lah.tex.compile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.spectre.FileName;
+import lah.spectre.stream.Streams;
+import lah.tex.Task;
+
+/**
+ * Cache of compilation results. A result is keyed by the command (engine, format and options), the fingerprint of the
+ * format file and the content of the main source file; it is valid as long as every other file read by the run is
+ * unchanged. The files read and written are taken from the {@code .fls} file written by the engine with the
+ * {@code -recorder} option.
+ *
+ * Each entry is a directory {@code [key]} containing the file {@code manifest}, the log {@code log} and the output
+ * files (PDF, .aux, ...) under {@code out}. The manifest has one line per file: {@code I [size] [mtime] [checksum]
+ * [path]} for a file read by the run (size and modification time are -1 if unknown), {@code A [path]} for a file read
+ * by the run which did not exist before it and {@code O [path]} for an output file. Paths in the directory of the
+ * document start with "./".
+ *
+ * A file that the run both reads and rewrites (e.g. the .aux file) is recorded with its content before the run, taken
+ * from a snapshot of the auxiliary files; runs that read some other file they rewrite are not cached. The total size
+ * of the entries is bounded, the least recently used entries are evicted first.
+ *
+ * @author L.A.H.
+ *
+ */
+public class CompileCache {
+
+	/**
+	 * State of the directory of a document before a run
+	 */
+	static class Snapshot {
+
+		/**
+		 * Checksums of the auxiliary files
+		 */
+		final Map<String, String> checksums = new HashMap<String, String>();
+
+		/**
+		 * Names of all files
+		 */
+		final Set<String> names = new HashSet<String>();
+
+	}
+
+	private static final String MANIFEST_FILE = "manifest", LOG_FILE = "log", OUTPUT_DIR = "out";
+
+	private static final Pattern manifest_line_pattern = Pattern
+			.compile("(I (-?[0-9]+) (-?[0-9]+) ([0-9a-f]+)|A|O) (.*)");
+
+	private static final Pattern recorder_line_pattern = Pattern.compile("(PWD|INPUT|OUTPUT) (.*)");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Append the line of a file read by a run to a manifest
+	 */
+	static void appendInput(StringBuilder manifest, File file, String path) throws IOException {
+		manifest.append("I ").append(file.length()).append(' ').append(file.lastModified()).append(' ')
+				.append(Checksums.sha1(file)).append(' ').append(path).append('\n');
+	}
+
+	static void copy(File source, File target) throws IOException {
+		target.getParentFile().mkdirs();
+		FileChannel in = new FileInputStream(source).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try {
+				long size = in.size(), position = 0;
+				while (position < size)
+					position += in.transferTo(position, size - position, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children)
+				delete(child);
+		}
+		file.delete();
+	}
+
+	/**
+	 * Remove the least recently used entries (files or directories) of a cache until their total size is within a
+	 * bound; names starting with "." are entries in preparation
+	 *
+	 * @param cache_dir
+	 *            Directory of the cache
+	 * @param max_size
+	 *            Maximum total size (in bytes) of the entries
+	 * @param keep
+	 *            Key of an entry which must not be removed
+	 */
+	static void evict(File cache_dir, long max_size, String keep) {
+		evict(cache_dir, max_size, Collections.singleton(keep));
+	}
+
+	/**
+	 * Remove the least recently used entries of a cache until their total size is within a bound, see
+	 * {@link #evict(File, long, String)}
+	 *
+	 * @param keep
+	 *            Keys of the entries which must not be removed, e.g. those in use
+	 */
+	static void evict(File cache_dir, long max_size, Set<String> keep) {
+		File[] entries = cache_dir.listFiles();
+		if (entries == null)
+			return;
+		final Map<File, Long> last_modified = new HashMap<File, Long>();
+		Map<File, Long> sizes = new HashMap<File, Long>();
+		long total_size = 0;
+		for (File entry : entries) {
+			long size = getSize(entry);
+			sizes.put(entry, size);
+			last_modified.put(entry, entry.lastModified());
+			total_size += size;
+		}
+		if (total_size <= max_size)
+			return;
+		Arrays.sort(entries, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(last_modified.get(f1), last_modified.get(f2));
+			}
+
+		});
+		for (File entry : entries) {
+			if (total_size <= max_size)
+				break;
+			if (keep.contains(entry.getName()) || entry.getName().startsWith("."))
+				continue;
+			delete(entry);
+			total_size -= sizes.get(entry);
+		}
+	}
+
+	/**
+	 * Get the fingerprint of the format used by a command, from the location, size and modification time of the
+	 * format file
+	 */
+	private static String getFormatFingerprint(String[] command) throws IOException {
+		for (String arg : command) {
+			if (!arg.startsWith("-fmt="))
+				continue;
+			String fmt = arg.substring("-fmt=".length());
+			String fmt_path = (new File(fmt).isAbsolute() ? fmt : Task.getKpathseaResolver().resolve(fmt, "fmt"));
+			if (fmt_path == null)
+				return fmt;
+			File fmt_file = new File(fmt_path);
+			return fmt_path + " " + fmt_file.length() + " " + fmt_file.lastModified();
+		}
+		return "";
+	}
+
+	/**
+	 * Get the path of a file as recorded in the manifest
+	 */
+	static String getPath(Path file, Path dir) {
+		return file.startsWith(dir) ? "./" + dir.relativize(file).toString() : file.toString();
+	}
+
+	private static long getSize(File file) {
+		File[] children = file.listFiles();
+		if (children == null)
+			return file.length();
+		long size = 0;
+		for (File child : children)
+			size += getSize(child);
+		return size;
+	}
+
+	/**
+	 * Test whether a file is an auxiliary file of a document, whose content is taken before each run
+	 */
+	private static boolean isAuxiliaryFile(String name, String base, String output_type) {
+		return name.endsWith(".aux")
+				|| (name.startsWith(base + ".") && !name.equals(base + "." + output_type)
+						&& !name.equals(base + ".fls") && !name.equals(base + ".log"));
+	}
+
+	/**
+	 * Test whether every file read by a run is unchanged
+	 *
+	 * @param manifest
+	 *            The manifest of the run
+	 * @param dir
+	 *            The directory which paths starting with "./" are relative to
+	 */
+	static boolean isValid(String manifest, File dir) throws IOException {
+		for (String line : manifest.split("\n")) {
+			if (line.isEmpty())
+				continue;
+			Matcher matcher = manifest_line_pattern.matcher(line);
+			if (!matcher.matches())
+				return false;
+			File file = resolve(matcher.group(5), dir);
+			if (matcher.group(1).equals("A")) {
+				if (file.exists())
+					return false;
+			} else if (matcher.group(1).startsWith("I")) {
+				long size = Long.parseLong(matcher.group(2)), last_modified = Long.parseLong(matcher.group(3));
+				if (!file.isFile() || (size >= 0 && file.length() != size))
+					return false;
+				// the checksum is only computed when the size and modification time do not tell
+				if ((size < 0 || file.lastModified() != last_modified)
+						&& !matcher.group(4).equals(Checksums.sha1(file)))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the files read and written by a run from the {@code .fls} file written with the {@code -recorder} option
+	 *
+	 * @param recorder_file
+	 *            The {@code .fls} file
+	 * @param dir
+	 *            Working directory of the run, which relative paths are resolved against
+	 * @param inputs
+	 *            Set to add the files read to
+	 * @param outputs
+	 *            Set to add the files written to
+	 * @throws IOException
+	 */
+	static void readRecorderFile(File recorder_file, Path dir, Set<Path> inputs, Set<Path> outputs)
+			throws IOException {
+		Path pwd = dir;
+		Matcher matcher = recorder_line_pattern.matcher("");
+		for (String line : Streams.readTextFile(recorder_file).split("\n")) {
+			if (!matcher.reset(line).matches())
+				continue;
+			Path path = pwd.resolve(matcher.group(2)).normalize();
+			if (matcher.group(1).equals("PWD"))
+				pwd = path;
+			else
+				(matcher.group(1).equals("INPUT") ? inputs : outputs).add(path);
+		}
+		outputs.remove(recorder_file.getAbsoluteFile().toPath().normalize());
+	}
+
+	/**
+	 * Resolve a path of the manifest in the directory of a document
+	 */
+	static File resolve(String path, File dir) {
+		return path.startsWith("./") ? new File(dir, path.substring(2)) : new File(path);
+	}
+
+	private final File cache_dir;
+
+	private final long max_size;
+
+	private final AtomicLong num_hits = new AtomicLong(), num_misses = new AtomicLong(),
+			num_uncacheable = new AtomicLong();
+
+	/**
+	 * Create (or open an existing) cache
+	 *
+	 * @param cache_dir
+	 *            Directory to store the entries
+	 * @param max_size
+	 *            Maximum total size (in bytes) of the entries
+	 */
+	public CompileCache(File cache_dir, long max_size) {
+		this.cache_dir = cache_dir;
+		this.max_size = max_size;
+	}
+
+	public File getDirectory() {
+		return cache_dir;
+	}
+
+	/**
+	 * Get the key of the result of a compilation
+	 *
+	 * @param command
+	 *            The command, without the {@code -recorder} option
+	 * @param tex_src_file
+	 *            The main source file
+	 * @return The key or {@code null} if the source file does not exist
+	 * @throws IOException
+	 */
+	String getKey(String[] command, File tex_src_file) throws IOException {
+		String src_checksum = Checksums.sha1(tex_src_file);
+		if (src_checksum == null)
+			return null;
+		StringBuilder key = new StringBuilder();
+		for (String arg : command)
+			key.append(arg).append('\0');
+		key.append('\n').append(getFormatFingerprint(command)).append('\n').append(src_checksum);
+		return Checksums.sha1(key.toString());
+	}
+
+	public long getNumberOfHits() {
+		return num_hits.get();
+	}
+
+	public long getNumberOfMisses() {
+		return num_misses.get();
+	}
+
+	/**
+	 * Get the number of runs whose result cannot be cached because they read a file they rewrite
+	 */
+	public long getNumberOfUncacheableRuns() {
+		return num_uncacheable.get();
+	}
+
+	/**
+	 * Restore the result of a previous run of a compilation if every file it read is unchanged: copy the output files
+	 * to the directory of the document and replay the log
+	 *
+	 * @param key
+	 *            Key of the compilation from {@link #getKey(String[], File)}
+	 * @param document
+	 *            The compilation
+	 * @param dir
+	 *            Directory of the document
+	 * @return {@code true} if the result is restored
+	 */
+	boolean restore(String key, CompileDocument document, File dir) {
+		File entry = new File(cache_dir, key);
+		try {
+			File manifest_file = new File(entry, MANIFEST_FILE);
+			if (!manifest_file.isFile()) {
+				num_misses.incrementAndGet();
+				return false;
+			}
+			String manifest = Streams.readTextFile(manifest_file);
+			if (!isValid(manifest, dir)) {
+				num_misses.incrementAndGet();
+				return false;
+			}
+			for (String line : manifest.split("\n")) {
+				if (line.startsWith("O "))
+					copy(new File(entry, OUTPUT_DIR + "/" + line.substring(4)), resolve(line.substring(2), dir));
+			}
+			String log = Streams.readTextFile(new File(entry, LOG_FILE));
+			for (String line : log.split("\n")) {
+				if (!line.isEmpty())
+					document.appendLog(line);
+			}
+		} catch (IOException e) {
+			// evicted or replaced meanwhile
+			num_misses.incrementAndGet();
+			return false;
+		}
+		// touch so that the entry becomes the most recently used
+		entry.setLastModified(System.currentTimeMillis());
+		num_hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Take the state of the directory of a document before a run
+	 *
+	 * @param tex_src_file
+	 *            The main source file
+	 * @param output_type
+	 *            Extension of the output file, which is not part of the snapshot
+	 * @return The snapshot
+	 * @throws IOException
+	 */
+	Snapshot snapshot(File tex_src_file, String output_type) throws IOException {
+		Snapshot snapshot = new Snapshot();
+		String base = FileName.removeFileExtension(tex_src_file.getName());
+		File[] files = tex_src_file.getAbsoluteFile().getParentFile().listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (!f.isFile())
+					continue;
+				snapshot.names.add(f.getName());
+				if (isAuxiliaryFile(f.getName(), base, output_type))
+					snapshot.checksums.put(f.getName(), Checksums.sha1(f));
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Store the result of a run of a compilation
+	 *
+	 * @param key
+	 *            Key of the compilation from {@link #getKey(String[], File)}
+	 * @param document
+	 *            The compilation, which has completed
+	 * @param dir
+	 *            Directory of the document
+	 * @param recorder_file
+	 *            The {@code .fls} file written by the run
+	 * @param snapshot
+	 *            State of the directory before the run
+	 * @throws IOException
+	 */
+	void store(String key, CompileDocument document, File dir, File recorder_file, Snapshot snapshot)
+			throws IOException {
+		Path dir_path = dir.getAbsoluteFile().toPath().normalize();
+		Set<Path> inputs = new LinkedHashSet<Path>(), outputs = new LinkedHashSet<Path>();
+		readRecorderFile(recorder_file, dir_path, inputs, outputs);
+		Map<String, File> output_files = new LinkedHashMap<String, File>();
+		for (Path output : outputs) {
+			// files written outside the directory (e.g. generated fonts) stay where they are
+			if (output.startsWith(dir_path) && output.toFile().isFile())
+				output_files.put(getPath(output, dir_path), output.toFile());
+		}
+		StringBuilder manifest = new StringBuilder();
+		for (Path input : inputs) {
+			File file = input.toFile();
+			String path = getPath(input, dir_path);
+			if (outputs.contains(input)) {
+				// rewritten by the run: use the content before the run
+				String name = file.getName();
+				boolean in_dir = input.getParent().equals(dir_path);
+				if (in_dir && !snapshot.names.contains(name))
+					manifest.append("A ").append(path).append('\n');
+				else if (in_dir && snapshot.checksums.containsKey(name)) {
+					// the size and modification time are those after the run so only the checksum can match
+					manifest.append("I -1 -1 ").append(snapshot.checksums.get(name)).append(' ').append(path)
+							.append('\n');
+				} else {
+					num_uncacheable.incrementAndGet();
+					return;
+				}
+			} else if (file.isFile())
+				appendInput(manifest, file, path);
+			else if (!file.isDirectory()) {
+				// read and deleted by the run
+				num_uncacheable.incrementAndGet();
+				return;
+			}
+		}
+		for (String path : output_files.keySet())
+			manifest.append("O ").append(path).append('\n');
+		StringBuilder log = new StringBuilder();
+		int num_lines = document.getNumberOfLogLines();
+		for (int i = 0; i < num_lines; i++)
+			log.append(document.getLogLine(i).getDescription()).append('\n');
+
+		// build the entry in a temporary directory and move it into place
+		cache_dir.mkdirs();
+		File temp_entry = Files.createTempDirectory(cache_dir.toPath(), "." + key).toFile();
+		try {
+			write(new File(temp_entry, MANIFEST_FILE), manifest.toString());
+			write(new File(temp_entry, LOG_FILE), log.toString());
+			for (Map.Entry<String, File> output : output_files.entrySet())
+				copy(output.getValue(), new File(temp_entry, OUTPUT_DIR + "/" + output.getKey().substring(2)));
+			synchronized (this) {
+				File entry = new File(cache_dir, key);
+				delete(entry);
+				Files.move(temp_entry.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				evict(cache_dir, max_size, key);
+			}
+		} finally {
+			delete(temp_entry);
+		}
+	}
+
+	static void write(File file, String content) throws IOException {
+		FileChannel out = new FileOutputStream(file).getChannel();
+		try {
+			ByteBuffer data = ByteBuffer.wrap(content.getBytes(UTF8));
+			while (data.hasRemaining())
+				out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -2,9 +2,13 @@ package lah.tex.compile;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,6 +31,20 @@ public class CompileDocument extends Task implements IBufferProcessor {
 
 	private static final Pattern badbox_pattern = Pattern.compile("(Over|Under)(full \\\\[hv]box .*)");
 
+	private static CompileCache compile_cache;
+
+	private static boolean compile_cache_enabled = true;
+
+	/**
+	 * Default maximum total size (in bytes) of the cached compilation results
+	 */
+	public static final long DEFAULT_COMPILE_CACHE_SIZE = 256L << 20;
+
+	/**
+	 * Default maximum total size (in bytes) of the cached preamble formats
+	 */
+	public static final long DEFAULT_PREAMBLE_FORMAT_CACHE_SIZE = 512L << 20;
+
 	/**
 	 * Default time out for compilation; set to 600000 miliseconds (i.e. 10 minutes)
 	 */
@@ -39,6 +57,16 @@ public class CompileDocument extends Task implements IBufferProcessor {
 	@SuppressWarnings("unused")
 	private static final Pattern lineNumberPattern = Pattern.compile("(l\\.|line |lines )\\s*(\\d+)[^\\d].*");
 
+	/**
+	 * Maximum length (in characters) of the window of wrapped lines searched for missing file errors
+	 */
+	private static final int MAX_WINDOW_LENGTH = 1024;
+
+	/**
+	 * Length of the lines in TeX's output, longer lines are wrapped; this is {@code max_print_line} in texmf.cnf
+	 */
+	private static final int max_print_line = 79;
+
 	private static final Pattern[] missing_file_patterns = {
 			// special cases, design for ease of switch
 			Pattern.compile("! OOPS! I can't find any hyphenation patterns for US english."),
@@ -52,10 +80,64 @@ public class CompileDocument extends Task implements IBufferProcessor {
 			Pattern.compile("! Package fontenc Error: Encoding file `([^`']*)' not found"),
 			Pattern.compile("Could not open config file \"([^\"]*)\"") };
 
-	private static final Pattern single_line_pattern = Pattern.compile("(.+)\n");
+	/**
+	 * Alternation of all {@link #missing_file_patterns}, each in a capturing group, to find any missing file error in a
+	 * single pass
+	 */
+	private static final Pattern missing_file_pattern;
+
+	/**
+	 * Index of the group of {@link #missing_file_pattern} capturing the whole match of each of
+	 * {@link #missing_file_patterns}
+	 */
+	private static final int[] missing_file_groups = new int[missing_file_patterns.length];
+
+	static {
+		StringBuilder regex = new StringBuilder();
+		int group = 1;
+		for (int i = 0; i < missing_file_patterns.length; i++) {
+			if (i > 0)
+				regex.append('|');
+			regex.append('(').append(missing_file_patterns[i].pattern()).append(')');
+			missing_file_groups[i] = group;
+			group += 1 + missing_file_patterns[i].matcher("").groupCount();
+		}
+		missing_file_pattern = Pattern.compile(regex.toString());
+	}
+
+	private static PreambleFormatCache preamble_format_cache;
+
+	private static boolean preamble_format_cache_enabled = true;
 
 	private static final Pattern warning_pattern = Pattern.compile("(((! )?(La|pdf)TeX)|Package) .*Warning.*:(.*)");
 
+	/**
+	 * Get the cache of compilation results, by default the directory "cache/compile" of the TeX root (outside of the
+	 * texmf directories, so that it is not in the ls-R files) bounded by {@link #DEFAULT_COMPILE_CACHE_SIZE}
+	 * 
+	 * @return The cache or {@code null} if caching is turned off
+	 */
+	public static synchronized CompileCache getCompileCache() {
+		if (compile_cache == null && compile_cache_enabled)
+			compile_cache = new CompileCache(new File(environment.getTeXMFRootDirectory()
+					+ "/cache/compile"), DEFAULT_COMPILE_CACHE_SIZE);
+		return compile_cache;
+	}
+
+	/**
+	 * Get the cache of preamble formats, by default the directory "cache/preamble-formats" of the TeX root bounded by
+	 * {@link #DEFAULT_PREAMBLE_FORMAT_CACHE_SIZE}
+	 * 
+	 * @return The cache or {@code null} if preamble formats are turned off
+	 */
+	public static synchronized PreambleFormatCache getPreambleFormatCache() {
+		if (preamble_format_cache == null && preamble_format_cache_enabled)
+			preamble_format_cache = new PreambleFormatCache(new File(environment.getTeXMFRootDirectory()
+					+ "/cache/preamble-formats"), DEFAULT_PREAMBLE_FORMAT_CACHE_SIZE,
+					PreambleFormatCache.DEFAULT_MIN_USES);
+		return preamble_format_cache;
+	}
+
 	public static String getProgramFromFormat(String format) {
 		if (format.startsWith("pdf"))
 			return "pdftex";
@@ -67,15 +149,85 @@ public class CompileDocument extends Task implements IBufferProcessor {
 			return "tex";
 	}
 
+	/**
+	 * Insert options in a command
+	 * 
+	 * @param command
+	 *            The command
+	 * @param options
+	 *            Options to insert right after the program name
+	 * @return The new command
+	 */
+	static String[] insertOptions(String[] command, String... options) {
+		String[] new_command = new String[command.length + options.length];
+		new_command[0] = command[0];
+		System.arraycopy(options, 0, new_command, 1, options.length);
+		System.arraycopy(command, 1, new_command, options.length + 1, command.length - 1);
+		return new_command;
+	}
+
+	/**
+	 * Set the cache of compilation results
+	 * 
+	 * @param cache
+	 *            The cache, {@code null} to turn caching off
+	 */
+	public static synchronized void setCompileCache(CompileCache cache) {
+		compile_cache = cache;
+		compile_cache_enabled = (cache != null);
+	}
+
+	/**
+	 * Set the cache of preamble formats
+	 * 
+	 * @param cache
+	 *            The cache, {@code null} to turn preamble formats off
+	 */
+	public static synchronized void setPreambleFormatCache(PreambleFormatCache cache) {
+		preamble_format_cache = cache;
+		preamble_format_cache_enabled = (cache != null);
+	}
+
+	/**
+	 * Whether to reuse the result of an identical previous compilation, see {@link CompileCache}
+	 */
+	private boolean cache_result;
+
 	protected String[] command;
 
 	protected String default_file_extension = "tex";
 
-	private List<LogLine> logs;
+	/**
+	 * Bytes of the incomplete line at the end of the output processed so far; a longer line is processed in pieces
+	 */
+	private final byte[] line_buffer = new byte[MAX_WINDOW_LENGTH];
+
+	private int line_length;
+
+	/**
+	 * Charset of the output, for decoding the lines
+	 */
+	private Charset log_charset = Charset.forName("UTF-8");
+
+	private CharsetDecoder log_decoder;
+
+	private final LogStore logs = new LogStore();
+
+	/**
+	 * Whether the last line is wrapped i.e. continued in the next line
+	 */
+	private boolean output_line_wrapped;
 
-	private StringBuilder nonewline_output_buffer = new StringBuilder(1024);
+	/**
+	 * The last output line together with the preceding lines it continues, for matching messages wrapped over several
+	 * lines
+	 */
+	private final StringBuilder output_window = new StringBuilder(MAX_WINDOW_LENGTH);
 
-	private StringBuilder output_buffer = new StringBuilder(1024);
+	/**
+	 * Whether to compile the body of the document against a format of its preamble, see {@link PreambleFormatCache}
+	 */
+	private boolean precompile_preamble;
 
 	protected String tex_engine;
 
@@ -104,19 +256,47 @@ public class CompileDocument extends Task implements IBufferProcessor {
 		}
 	}
 
+	/**
+	 * Pass additional options to the program
+	 * 
+	 * @param options
+	 *            Options to insert right after the program name
+	 */
+	void addOptions(String... options) {
+		command = insertOptions(command, options);
+	}
+
 	public void appendLog(String line) {
 		if (line == null)
 			return;
-		if (logs == null)
-			logs = new ArrayList<LogLine>();
-		if (warning_pattern.matcher(line).matches())
-			logs.add(new LogLine(LogLine.LEVEL_WARNING, line));
-		else if (badbox_pattern.matcher(line).matches())
-			logs.add(new LogLine(LogLine.LEVEL_WARNING, line));
-		else if (error_pattern.matcher(line).matches())
-			logs.add(new LogLine(LogLine.LEVEL_ERROR, line));
+		// the plain string tests rule out most lines before the patterns are tried
+		if (line.contains("Warning") && warning_pattern.matcher(line).matches())
+			logs.add(LogLine.LEVEL_WARNING, line);
+		else if ((line.startsWith("Over") || line.startsWith("Under")) && badbox_pattern.matcher(line).matches())
+			logs.add(LogLine.LEVEL_WARNING, line);
+		else if (line.startsWith("! ") && error_pattern.matcher(line).matches())
+			logs.add(LogLine.LEVEL_ERROR, line);
 		else
-			logs.add(new LogLine(LogLine.LEVEL_OK, line));
+			logs.add(LogLine.LEVEL_OK, line);
+	}
+
+	private void appendToLineBuffer(byte[] buffer, int start, int end) throws Exception {
+		while (start < end) {
+			if (line_length == line_buffer.length) {
+				// the pieces of an over-long line continue one another like wrapped lines, so that only the tail of
+				// the line is kept in the window; a character cut at the end of a piece is carried over to the next
+				int piece_length = getPieceLength();
+				int carry_length = line_length - piece_length;
+				line_length = piece_length;
+				processLine(decodeLine(), line_length, true);
+				System.arraycopy(line_buffer, piece_length, line_buffer, 0, carry_length);
+				line_length = carry_length;
+			}
+			int length = Math.min(end - start, line_buffer.length - line_length);
+			System.arraycopy(buffer, start, line_buffer, line_length, length);
+			line_length += length;
+			start += length;
+		}
 	}
 
 	/**
@@ -128,12 +308,22 @@ public class CompileDocument extends Task implements IBufferProcessor {
 	private boolean chmodAllEngines() throws Exception {
 		File bindir = new File(environment.getTeXMFBinaryDirectory() + "/../../");
 		if (bindir.exists() && bindir.isDirectory()) {
-			shell.fork(new String[] { environment.getBusyBox(), "chmod", "-R", "700", "." }, bindir);
+			getShell().fork(new String[] { environment.getBusyBox(), "chmod", "-R", "700", "." }, bindir);
 			return true;
 		}
 		return true;
 	}
 
+	/**
+	 * Decode the bytes in the line buffer
+	 */
+	private String decodeLine() throws CharacterCodingException {
+		if (log_decoder == null)
+			log_decoder = log_charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return log_decoder.decode(ByteBuffer.wrap(line_buffer, 0, line_length)).toString();
+	}
+
 	@Override
 	public String getDescription() {
 		if (tex_src_file != null)
@@ -145,9 +335,36 @@ public class CompileDocument extends Task implements IBufferProcessor {
 	}
 
 	public LogLine getLogLine(int index) {
-		if (logs != null && index < logs.size())
-			return logs.get(index);
-		return null;
+		return logs.get(index);
+	}
+
+	/**
+	 * Get the index of an error or warning line, to go to it without scanning the log
+	 * 
+	 * @param severity
+	 *            {@link LogLine#LEVEL_ERROR} or {@link LogLine#LEVEL_WARNING}
+	 * @param n
+	 *            Rank of the line among the lines of that severity
+	 * @return Index of the line for {@link #getLogLine(int)} or -1 if there are at most {@code n} lines of that
+	 *         severity
+	 */
+	public int getLogLineIndex(byte severity, int n) {
+		return logs.getLineIndex(severity, n);
+	}
+
+	public int getNumberOfLogLines() {
+		return logs.size();
+	}
+
+	/**
+	 * Get the number of lines of a severity
+	 * 
+	 * @param severity
+	 *            One of {@link LogLine#LEVEL_ERROR}, {@link LogLine#LEVEL_WARNING} and {@link LogLine#LEVEL_OK}
+	 * @return Number of lines of that severity
+	 */
+	public int getNumberOfLogLines(byte severity) {
+		return logs.getNumberOfLines(severity);
 	}
 
 	/**
@@ -181,6 +398,29 @@ public class CompileDocument extends Task implements IBufferProcessor {
 		return null;
 	}
 
+	/**
+	 * Get the length of the longest prefix of the line buffer which does not end in the middle of a UTF-8 sequence
+	 */
+	private int getPieceLength() {
+		if (!"UTF-8".equals(log_charset.name()))
+			return line_length;
+		// a lead byte is followed by at most 3 continuation bytes 10xxxxxx
+		int lead = line_length - 1;
+		while (lead > 0 && line_length - lead < 4 && (line_buffer[lead] & 0xC0) == 0x80)
+			lead--;
+		int b = line_buffer[lead] & 0xFF;
+		int sequence_length = (b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1);
+		return (lead > 0 && lead + sequence_length > line_length ? lead : line_length);
+	}
+
+	/**
+	 * Test whether the result of this compilation can be cached i.e. it is a run of a TeX engine on a document
+	 */
+	private boolean isCacheable() {
+		return getClass() == CompileDocument.class && tex_src_file != null
+				&& command[0].equals(getProgramFromFormat(tex_engine));
+	}
+
 	@Override
 	public boolean isSuccessful() {
 		// TODO return false in case if there is TeX error as well
@@ -189,37 +429,72 @@ public class CompileDocument extends Task implements IBufferProcessor {
 	}
 
 	/**
-	 * Process *TeX, MetaFont and MetaPost standard output
+	 * Process *TeX, MetaFont and MetaPost standard output: split it into lines at the byte level (so that multi-byte
+	 * characters split between two buffers are decoded correctly) and check each complete line
 	 */
 	@Override
 	public void processBuffer(byte[] buffer, int count) throws Exception {
-		// Collect the log
-		output_buffer.append(new String(buffer, 0, count));
-		Matcher matcher = single_line_pattern.matcher(output_buffer);
-		Matcher kpsematcher;
-		while (matcher.find()) {
-			String line = matcher.group(1);
-			if ((kpsematcher = kpathsea_pattern.matcher(line)).find())
-				throw new KpathseaException(kpsematcher.group(1));
-			// System.out.println(line);
-			appendLog(line); // Always append the log
-			output_buffer.delete(0, matcher.end());
-			nonewline_output_buffer.append(line);
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			if (buffer[i] != '\n')
+				continue;
+			appendToLineBuffer(buffer, start, i);
+			start = i + 1;
+			if (line_length > 0 && line_buffer[line_length - 1] == '\r')
+				line_length--;
+			// empty lines are neither logged nor continue a wrapped line
+			if (line_length > 0)
+				processLine(decodeLine(), line_length, false);
+			else
+				output_line_wrapped = false;
+			line_length = 0;
 		}
+		appendToLineBuffer(buffer, start, count);
+	}
 
-		// Check for missing file error
+	/**
+	 * Check a line of output for kpathsea running external programs and for missing file errors
+	 * 
+	 * @param line
+	 *            The decoded line, without the line terminator
+	 * @param num_bytes
+	 *            Length of the line in bytes
+	 * @param is_piece
+	 *            Whether the line is a piece of an over-long line, continued in the next line
+	 * @throws Exception
+	 */
+	private void processLine(String line, int num_bytes, boolean is_piece) throws Exception {
+		Matcher matcher;
+		if (line.contains("kpathsea: ") && (matcher = kpathsea_pattern.matcher(line)).find())
+			throw new KpathseaException(matcher.group(1));
+		appendLog(line); // Always append the log
+
+		// TeX wraps lines at max_print_line characters, counting bytes (pdfTeX) or characters (XeTeX, LuaTeX); a message
+		// can therefore continue on the next lines
+		if (!output_line_wrapped)
+			output_window.setLength(0);
+		output_window.append(line);
+		if (output_window.length() > MAX_WINDOW_LENGTH)
+			output_window.delete(0, output_window.length() - MAX_WINDOW_LENGTH);
+		output_line_wrapped = (is_piece || num_bytes == max_print_line || line.length() == max_print_line);
+
+		// Check for missing file error; all the messages contain "!" except the one for config files
+		if ((output_window.indexOf("!") < 0 && output_window.indexOf("Could not open") < 0)
+				|| !(matcher = missing_file_pattern.matcher(output_window)).find())
+			return;
 		for (int i = 0; i < missing_file_patterns.length; i++) {
-			if ((matcher = missing_file_patterns[i].matcher(nonewline_output_buffer)).find()) {
-				switch (i) {
-				case 0:
-					throw new TeXMFFileNotFoundException("hyphen.tex");
-				case 1:
-					throw new TeXMFFileNotFoundException(matcher.group(1) + ".lua");
-				case 2:
-					throw new TeXMFFileNotFoundException(matcher.group(1) + ".tfm");
-				default:
-					throw new TeXMFFileNotFoundException(matcher.group(1), default_file_extension);
-				}
+			int group = missing_file_groups[i];
+			if (matcher.start(group) < 0)
+				continue;
+			switch (i) {
+			case 0:
+				throw new TeXMFFileNotFoundException("hyphen.tex");
+			case 1:
+				throw new TeXMFFileNotFoundException(matcher.group(group + 1) + ".lua");
+			case 2:
+				throw new TeXMFFileNotFoundException(matcher.group(group + 1) + ".tfm");
+			default:
+				throw new TeXMFFileNotFoundException(matcher.group(group + 1), default_file_extension);
 			}
 		}
 	}
@@ -227,10 +502,10 @@ public class CompileDocument extends Task implements IBufferProcessor {
 	@Override
 	public void reset() {
 		super.reset();
-		output_buffer.delete(0, output_buffer.length());
-		nonewline_output_buffer.delete(0, nonewline_output_buffer.length());
-		if (logs != null)
-			logs.clear();
+		line_length = 0;
+		output_window.setLength(0);
+		output_line_wrapped = false;
+		logs.clear();
 	}
 
 	@Override
@@ -239,15 +514,52 @@ public class CompileDocument extends Task implements IBufferProcessor {
 		setState(TaskState.EXECUTING);
 		if (tex_src_file.exists()) {
 			try {
+				// reuse the result of an identical previous run if the files it read are unchanged
+				File dir = tex_src_file.getAbsoluteFile().getParentFile();
+				CompileCache cache = (cache_result && isCacheable() ? getCompileCache() : null);
+				String cache_key = (cache == null ? null : cache.getKey(command, tex_src_file));
+				if (cache_key != null && cache.restore(cache_key, this, dir)) {
+					setState(TaskState.COMPLETE);
+					return;
+				}
 				chmodAllEngines();
 				// check the existence of the engine
 				checkProgram(command[0]);
 				// for METAPOST, tex might also be required for labels
 				if (command[0].equals("mpost"))
 					checkProgram("tex");
-				// compile the input file using the engine
-				shell.fork(command, tex_src_file.getParentFile(), null, this,
-						timeout <= 0 ? default_compilation_timeout : timeout);
+				// compile the input file using the engine, against the format of its preamble if it is stable, recording
+				// the files read and written for the cache
+				PreambleFormatCache preamble_cache = (precompile_preamble && isCacheable() ? getPreambleFormatCache()
+						: null);
+				PreambleFormatCache.Format format = (preamble_cache == null ? null : preamble_cache.getFormat(command,
+						tex_src_file, getShell()));
+				String[] run_command = (format == null ? command : format.command);
+				try {
+					File recorder_file = null;
+					CompileCache.Snapshot snapshot = null;
+					if (cache_key != null) {
+						run_command = insertOptions(run_command, "-recorder");
+						recorder_file = new File(dir, FileName.removeFileExtension(tex_src_file.getName()) + ".fls");
+						recorder_file.delete();
+						snapshot = cache.snapshot(tex_src_file, getOutputType());
+					}
+					getShell().fork(run_command, tex_src_file.getParentFile(), null, this,
+							timeout <= 0 ? default_compilation_timeout : timeout);
+					if (cache_key != null && recorder_file.exists()) {
+						try {
+							if (format != null)
+								format.addInputsTo(recorder_file);
+							cache.store(cache_key, this, dir, recorder_file, snapshot);
+						} catch (IOException e) {
+							// the result is just not cached
+						}
+					}
+				} finally {
+					// the format (and the body) can be evicted or rebuilt once the compilation is done
+					if (format != null)
+						format.release();
+				}
 				setState(TaskState.COMPLETE);
 			} catch (Exception e) {
 				setException(e);
@@ -260,8 +572,43 @@ public class CompileDocument extends Task implements IBufferProcessor {
 		}
 	}
 
+	/**
+	 * Set whether to reuse the result of an identical previous compilation whose input files are unchanged; the
+	 * compilation is then run with {@code -recorder} (leaving a {@code .fls} file) and its inputs are hashed on a miss.
+	 * Documents whose output depends on something else than the input files (e.g. the date or shell escape) should not
+	 * be cached.
+	 * 
+	 * @param cache_result
+	 *            {@code true} to use the compile cache, off by default
+	 */
+	public void setCacheResult(boolean cache_result) {
+		this.cache_result = cache_result;
+	}
+
 	protected void setDefaultFileExtension(String ext) {
 		default_file_extension = ext;
 	}
 
+	/**
+	 * Set whether to compile the body of a LaTeX document against a format of its preamble, built once the preamble is
+	 * stable; this saves reading the packages at each compilation
+	 * 
+	 * @param precompile_preamble
+	 *            {@code true} to use preamble formats, off by default
+	 */
+	public void setPrecompilePreamble(boolean precompile_preamble) {
+		this.precompile_preamble = precompile_preamble;
+	}
+
+	/**
+	 * Set the charset to decode the output of the program with, UTF-8 by default
+	 * 
+	 * @param charset
+	 *            The charset
+	 */
+	public void setLogCharset(Charset charset) {
+		log_charset = charset;
+		log_decoder = null;
+	}
+
 }
@@ -0,0 +1,254 @@
+package lah.tex.compile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact store of the output lines of a compilation, kept in columns: the severity of each line in a byte array and
+ * the text of all lines in a shared UTF-8 buffer indexed by an array of offsets. The text buffer is moved to a
+ * memory-mapped temporary file once it exceeds a threshold so that huge logs do not stay on the heap.
+ *
+ * The indices of the error and warning lines are also kept so that clients can go to them without scanning the whole
+ * log. {@link LogLine} objects are only created on request.
+ *
+ * @author L.A.H.
+ *
+ */
+class LogStore {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Default size (in bytes) of the text above which it is spilled to a file
+	 */
+	static final int DEFAULT_SPILL_THRESHOLD = 1 << 20;
+
+	/**
+	 * Number of lines of each severity in {@link #severity_index}
+	 */
+	private final int[] severity_counts = new int[LogLine.LEVEL_OK];
+
+	/**
+	 * Indices of the lines of each severity strictly below {@link LogLine#LEVEL_OK}, in increasing order
+	 */
+	private final int[][] severity_index = new int[LogLine.LEVEL_OK][];
+
+	private byte[] severities = new byte[256];
+
+	/**
+	 * Number of lines stored
+	 */
+	private int size;
+
+	private FileChannel spill_channel;
+
+	private File spill_file;
+
+	/**
+	 * Mapping of the spill file, {@code null} while the text is on the heap
+	 */
+	private MappedByteBuffer spill_text;
+
+	private final int spill_threshold;
+
+	private byte[] text = new byte[4096];
+
+	/**
+	 * Offset of the start of each line in the text; the end of the last line is {@link #text_length}
+	 */
+	private int[] text_offsets = new int[256];
+
+	private int text_length;
+
+	LogStore() {
+		this(DEFAULT_SPILL_THRESHOLD);
+	}
+
+	/**
+	 * Create an empty store
+	 *
+	 * @param spill_threshold
+	 *            Size (in bytes) of the text above which it is moved to a memory-mapped file
+	 */
+	LogStore(int spill_threshold) {
+		this.spill_threshold = spill_threshold;
+		for (int s = 0; s < severity_index.length; s++)
+			severity_index[s] = new int[16];
+	}
+
+	/**
+	 * Add a line
+	 *
+	 * @param severity
+	 *            One of {@link LogLine#LEVEL_ERROR}, {@link LogLine#LEVEL_WARNING} or {@link LogLine#LEVEL_OK}
+	 * @param line
+	 *            The line
+	 */
+	synchronized void add(byte severity, String line) {
+		byte[] bytes = line.getBytes(UTF8);
+		try {
+			appendText(bytes);
+		} catch (IOException e) {
+			if (spill_text == null) {
+				// cannot spill, keep the text on the heap
+				text = Arrays.copyOf(text, Math.max(text_length + bytes.length, 2 * text.length));
+				System.arraycopy(bytes, 0, text, text_length, bytes.length);
+			} else
+				// cannot grow the spill file, keep the severity of the line only
+				bytes = new byte[0];
+		}
+		if (size == severities.length) {
+			severities = Arrays.copyOf(severities, 2 * size);
+			text_offsets = Arrays.copyOf(text_offsets, 2 * size);
+		}
+		severities[size] = severity;
+		text_offsets[size] = text_length;
+		text_length += bytes.length;
+		if (severity < LogLine.LEVEL_OK) {
+			int[] index = severity_index[severity];
+			if (severity_counts[severity] == index.length)
+				severity_index[severity] = index = Arrays.copyOf(index, 2 * index.length);
+			index[severity_counts[severity]++] = size;
+		}
+		size++;
+	}
+
+	/**
+	 * Append text at {@link #text_length}, spilling it to a file or growing the buffers if necessary
+	 */
+	private void appendText(byte[] bytes) throws IOException {
+		int end = text_length + bytes.length;
+		if (spill_text == null) {
+			if (end <= text.length) {
+				System.arraycopy(bytes, 0, text, text_length, bytes.length);
+				return;
+			}
+			if (end <= spill_threshold) {
+				text = Arrays.copyOf(text, Math.min(Math.max(end, 2 * text.length), spill_threshold));
+				System.arraycopy(bytes, 0, text, text_length, bytes.length);
+				return;
+			}
+			spill(Math.max(end, Math.min(2L * spill_threshold, Integer.MAX_VALUE)));
+		} else if (end > spill_text.capacity())
+			spill_text = spill_channel.map(FileChannel.MapMode.READ_WRITE, 0,
+					Math.max(end, Math.min(2L * spill_text.capacity(), Integer.MAX_VALUE)));
+		ByteBuffer dest = spill_text.duplicate();
+		dest.position(text_length);
+		dest.put(bytes);
+	}
+
+	/**
+	 * Remove all lines and the spill file
+	 */
+	synchronized void clear() {
+		size = 0;
+		text_length = 0;
+		Arrays.fill(severity_counts, 0);
+		if (spill_channel != null) {
+			try {
+				spill_channel.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			spill_file.delete();
+			spill_channel = null;
+			spill_file = null;
+			spill_text = null;
+			text = new byte[4096];
+		}
+	}
+
+	/**
+	 * Get a line
+	 *
+	 * @param index
+	 *            Index of the line
+	 * @return A view of the line or {@code null} if there is no such line
+	 */
+	synchronized LogLine get(int index) {
+		if (index < 0 || index >= size)
+			return null;
+		int start = text_offsets[index];
+		int end = (index + 1 < size ? text_offsets[index + 1] : text_length);
+		String line;
+		if (spill_text == null)
+			line = new String(text, start, end - start, UTF8);
+		else {
+			byte[] bytes = new byte[end - start];
+			ByteBuffer src = spill_text.duplicate();
+			src.position(start);
+			src.get(bytes);
+			line = new String(bytes, UTF8);
+		}
+		return new LogLine(severities[index], line);
+	}
+
+	/**
+	 * Get the index of a line of some severity
+	 *
+	 * @param severity
+	 *            {@link LogLine#LEVEL_ERROR} or {@link LogLine#LEVEL_WARNING}
+	 * @param n
+	 *            Rank of the line among the lines of that severity
+	 * @return Index of the {@code n}-th line of the severity or -1 if there is none
+	 */
+	synchronized int getLineIndex(byte severity, int n) {
+		if (severity < 0 || severity >= LogLine.LEVEL_OK || n < 0 || n >= severity_counts[severity])
+			return -1;
+		return severity_index[severity][n];
+	}
+
+	/**
+	 * Get the number of lines of some severity
+	 *
+	 * @param severity
+	 *            One of {@link LogLine#LEVEL_ERROR}, {@link LogLine#LEVEL_WARNING} or {@link LogLine#LEVEL_OK}
+	 */
+	synchronized int getNumberOfLines(byte severity) {
+		if (severity < 0 || severity > LogLine.LEVEL_OK)
+			return 0;
+		if (severity < LogLine.LEVEL_OK)
+			return severity_counts[severity];
+		int count = size;
+		for (int c : severity_counts)
+			count -= c;
+		return count;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Move the text to a memory-mapped temporary file
+	 *
+	 * @param capacity
+	 *            Initial size of the mapping
+	 * @throws IOException
+	 */
+	private void spill(long capacity) throws IOException {
+		File file = File.createTempFile("log", ".tmp");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+			mapped.put(text, 0, text_length);
+			spill_file = file;
+			spill_channel = channel;
+			spill_text = mapped;
+			text = null;
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			throw e;
+		}
+	}
+
+}
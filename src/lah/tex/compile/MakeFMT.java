@@ -28,6 +28,12 @@ public class MakeFMT extends CompileDocument {
 	 */
 	private String format;
 
+	/**
+	 * Directory to write the format to and to run the engine in, {@code null} for the format directory of the TeX
+	 * root
+	 */
+	private File output_dir, working_dir;
+
 	public MakeFMT(String format) {
 		this.format = format;
 		Matcher format_matcher = format_pattern.matcher(format);
@@ -67,6 +73,31 @@ public class MakeFMT extends CompileDocument {
 		setDefaultFileExtension(default_ext);
 	}
 
+	/**
+	 * Constructor to dump a format which is another format with some more input already read, e.g. the preamble of a
+	 * LaTeX document; the input file ends with {@code \dump}
+	 * 
+	 * @param base_format
+	 *            The format to start with e.g. "pdflatex"
+	 * @param input_file
+	 *            The input file
+	 * @param jobname
+	 *            Name of the job, which is also the name of the format file
+	 * @param output_dir
+	 *            Directory to write the format to
+	 * @param working_dir
+	 *            Directory to run the engine in, where local input files are found
+	 */
+	MakeFMT(String base_format, File input_file, String jobname, File output_dir, File working_dir) {
+		this.format = jobname + ".fmt";
+		this.output_dir = output_dir;
+		this.working_dir = working_dir;
+		tex_engine = base_format;
+		command = new String[] { CompileDocument.getProgramFromFormat(base_format), "-ini",
+				"-interaction=nonstopmode", "-recorder", "-output-directory=" + output_dir.getAbsolutePath(),
+				"-jobname=" + jobname, "&" + base_format, input_file.getAbsolutePath() };
+	}
+
 	@Override
 	public String getDescription() {
 		return strings.getString("desc_generate_format_") + format;
@@ -101,14 +132,19 @@ public class MakeFMT extends CompileDocument {
 			}
 
 			// Location of the memory dump file
-			File fmt_loc = new File(environment.getTeXMFRootDirectory() + "/texmf-var/web2c/" + tex_engine);
+			File fmt_loc = (output_dir != null ? output_dir : new File(environment.getTeXMFRootDirectory()
+					+ "/texmf-var/web2c/" + tex_engine));
 			if (!fmt_loc.exists())
 				fmt_loc.mkdirs();
 
 			// Now create and run the process to generate the format file
 			checkProgram(command[0]);
-			shell.fork(command, fmt_loc, this, default_compilation_timeout);
-			runFinalMakeLSR();
+			getShell().fork(command, working_dir != null ? working_dir : fmt_loc, this, default_compilation_timeout);
+			// formats outside the TeX root are found by their path
+			if (output_dir == null)
+				runFinalMakeLSR(listFiles(fmt_loc), null);
+			else
+				setState(TaskState.COMPLETE);
 		} catch (Exception e) {
 			setException(e);
 			return;
@@ -2,6 +2,7 @@ package lah.tex.compile;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.util.Collections;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -95,10 +96,11 @@ public class MakeMF extends Task {
 		try {
 			String mf_font_directory = environment.getTeXMFRootDirectory() + "/texmf-var/fonts/source/";
 			new File(mf_font_directory).mkdirs();
-			FileWriter mf_output = new FileWriter(mf_font_directory + name + ".mf");
+			File mf_file = new File(mf_font_directory + name + ".mf");
+			FileWriter mf_output = new FileWriter(mf_file);
 			mf_output.write(mf_content[match]);
 			mf_output.close();
-			runFinalMakeLSR();
+			runFinalMakeLSR(Collections.singletonList(mf_file.getAbsolutePath()), null);
 		} catch (Exception e) {
 			setException(e);
 			return;
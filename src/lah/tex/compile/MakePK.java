@@ -80,7 +80,7 @@ public class MakePK extends CompileDocument {
 			shell.fork(new String[] { "mf", arg }, pk_loc, this, default_compilation_timeout);
 			checkProgram("gftopk");
 			shell.fork(new String[] { "gftopk", gf_name, pk_name }, pk_loc);
-			runFinalMakeLSR();
+			runFinalMakeLSR(listFiles(pk_loc), null);
 		} catch (Exception e) {
 			setException(e);
 			return;
@@ -27,7 +27,7 @@ public class MakeTFM extends CompileDocument {
 		try {
 			checkProgram("mf");
 			shell.fork(new String[] { "mf", arg }, tfm_loc, this, default_compilation_timeout);
-			runFinalMakeLSR();
+			runFinalMakeLSR(listFiles(tfm_loc), null);
 		} catch (Exception e) {
 			setException(e);
 			return;
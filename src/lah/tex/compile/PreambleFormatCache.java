@@ -0,0 +1,404 @@
+package lah.tex.compile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import lah.spectre.FileName;
+import lah.spectre.process.TimedShell;
+import lah.spectre.stream.Streams;
+import lah.tex.exceptions.SolvableException;
+
+/**
+ * Cache of formats with the preamble of a LaTeX document already read, so that the compilations of the document only
+ * read its body. A preamble is the part of the main source file before the line {@code \begin{document}} (or before a
+ * line {@code %endofdump}, as for the mylatexformat package); its format is dumped by running the base format in
+ * initialization mode on the preamble followed by {@code \dump}. The body is compiled against the format with the same
+ * job name so that the output files are those of a normal compilation; the preamble lines are blanked out in the body
+ * to keep the line numbers of the messages.
+ *
+ * A format is only built for a stable preamble i.e. one seen in a number of compilations. Each entry is a directory
+ * {@code [key]}, the key being the checksum of the engine, base format, job name and preamble, containing the format,
+ * the file {@code manifest} listing the files read to make it in the format of {@link CompileCache} and the copies of
+ * the bodies being compiled against it. The format is rebuilt when one of these files (e.g. a package) changes. Preambles which cannot
+ * be dumped are compiled normally. An entry is pinned while a document is compiled against it: it is neither evicted
+ * nor rebuilt until the compilation releases its {@link Format}, and the copy of the body is removed then.
+ *
+ * As the engine reads the copy of the body in the cache, the file name of the main source file in the messages of the
+ * engine and in the SyncTeX data is that of the copy; only the line numbers match the source file.
+ *
+ * @author L.A.H.
+ *
+ */
+public class PreambleFormatCache {
+
+	/**
+	 * Format to compile a document against, to be released once the compilation is done
+	 */
+	class Format {
+
+		/**
+		 * Command compiling the body of the document against the format
+		 */
+		final String[] command;
+
+		/**
+		 * Copy of the body of the document compiled against the format
+		 */
+		private final File body_file;
+
+		/**
+		 * Directory of the document
+		 */
+		private final File dir;
+
+		private final File entry;
+
+		private boolean released;
+
+		private Format(String[] command, File entry, File body_file, File dir) {
+			this.command = command;
+			this.entry = entry;
+			this.body_file = body_file;
+			this.dir = dir;
+		}
+
+		/**
+		 * Add the files read to make the format to the {@code .fls} file of a compilation against it, so that its
+		 * cached result is invalidated together with the format
+		 *
+		 * @param recorder_file
+		 *            The {@code .fls} file
+		 * @throws IOException
+		 */
+		void addInputsTo(File recorder_file) throws IOException {
+			StringBuilder inputs = new StringBuilder();
+			for (String line : Streams.readTextFile(new File(entry, MANIFEST_FILE)).split("\n")) {
+				String[] fields = line.split(" ", 5);
+				if (fields.length == 5 && fields[0].equals("I"))
+					inputs.append("INPUT ").append(CompileCache.resolve(fields[4], dir).getAbsolutePath()).append('\n');
+			}
+			OutputStream out = new FileOutputStream(recorder_file, true);
+			try {
+				out.write(inputs.toString().getBytes(UTF8));
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Release the entry of the format, which can be evicted or rebuilt again, and remove the copy of the body
+		 * unless another compilation uses it
+		 */
+		void release() {
+			synchronized (PreambleFormatCache.this) {
+				if (released)
+					return;
+				released = true;
+				unpin(pins, entry.getName());
+				if (unpin(body_pins, body_file.getName()))
+					body_file.delete();
+			}
+		}
+
+	}
+
+	private static final Pattern begin_document_pattern = Pattern.compile("\\s*\\\\begin\\s*\\{document\\}.*");
+
+	/**
+	 * Default number of compilations with the same preamble before its format is built
+	 */
+	public static final int DEFAULT_MIN_USES = 2;
+
+	private static final Pattern end_of_dump_pattern = Pattern.compile("\\s*%\\s*endofdump\\s*");
+
+	/**
+	 * Sources are read and written byte for byte, whatever their encoding
+	 */
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static final String MANIFEST_FILE = "manifest", PREAMBLE_FILE = "preamble.tex";
+
+	/**
+	 * Formats whose preambles can be dumped
+	 */
+	private static final Set<String> supported_formats = new LinkedHashSet<String>();
+
+	static {
+		supported_formats.add("pdflatex");
+		supported_formats.add("latex");
+	}
+
+	/**
+	 * Commands whose effect is lost in a dumped format, e.g. opening a file to write
+	 */
+	private static final Pattern undumpable_pattern = Pattern
+			.compile("\\\\(makeindex|makeglossaries|immediate|openout|write18)(?![a-zA-Z@])");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static void pin(Map<String, Integer> pins, String name) {
+		Integer count = pins.get(name);
+		pins.put(name, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Remove a pin of a name
+	 *
+	 * @return {@code true} if the name is no longer pinned
+	 */
+	private static boolean unpin(Map<String, Integer> pins, String name) {
+		Integer count = pins.get(name);
+		if (count != null && count > 1) {
+			pins.put(name, count - 1);
+			return false;
+		}
+		pins.remove(name);
+		return true;
+	}
+
+	private final File cache_dir;
+
+	/**
+	 * Keys of the preambles which cannot be dumped
+	 */
+	private final ConcurrentHashMap<String, Boolean> failed_keys = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 * Locks of the entries, so that a format is built once for concurrent compilations
+	 */
+	private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	private final long max_size;
+
+	private final int min_uses;
+
+	private final AtomicLong num_builds = new AtomicLong(), num_failed_builds = new AtomicLong(),
+			num_hits = new AtomicLong();
+
+	/**
+	 * Number of compilations of each preamble whose format is not built yet
+	 */
+	private final ConcurrentHashMap<String, AtomicInteger> num_uses = new ConcurrentHashMap<String, AtomicInteger>();
+
+	/**
+	 * Number of compilations against each entry (by key) and reading each copy of a body (by file name, the checksum
+	 * of the body); guarded by this cache
+	 */
+	private final Map<String, Integer> pins = new HashMap<String, Integer>(),
+			body_pins = new HashMap<String, Integer>();
+
+	/**
+	 * Create (or open an existing) cache
+	 *
+	 * @param cache_dir
+	 *            Directory to store the entries
+	 * @param max_size
+	 *            Maximum total size (in bytes) of the entries
+	 * @param min_uses
+	 *            Number of compilations with the same preamble before its format is built
+	 */
+	public PreambleFormatCache(File cache_dir, long max_size, int min_uses) {
+		this.cache_dir = cache_dir;
+		this.max_size = max_size;
+		this.min_uses = min_uses;
+	}
+
+	/**
+	 * Dump the format of a preamble and move it into place
+	 *
+	 * @return {@code true} if the format is built
+	 * @throws IOException
+	 */
+	private boolean build(File entry, String base_format, String jobname, String preamble, File dir,
+			TimedShell shell) throws IOException {
+		cache_dir.mkdirs();
+		File temp_entry = Files.createTempDirectory(cache_dir.toPath(), "." + entry.getName()).toFile();
+		try {
+			File preamble_file = new File(temp_entry, PREAMBLE_FILE);
+			Files.write(preamble_file.toPath(), (preamble + "\\dump\n").getBytes(LATIN1));
+			MakeFMT dump = new MakeFMT(base_format, preamble_file, jobname, temp_entry, dir);
+			dump.setAutoSolve(false);
+			dump.setShell(shell);
+			dump.run();
+			if (dump.hasException() || !new File(temp_entry, jobname + ".fmt").isFile()) {
+				num_failed_builds.incrementAndGet();
+				// a missing package is installed by the normal compilation, the format can be built after that
+				if (!(dump.getException() instanceof SolvableException))
+					failed_keys.put(entry.getName(), Boolean.TRUE);
+				return false;
+			}
+			Path dir_path = dir.toPath().normalize(), temp_path = temp_entry.getAbsoluteFile().toPath().normalize();
+			Set<Path> inputs = new LinkedHashSet<Path>(), outputs = new LinkedHashSet<Path>();
+			CompileCache.readRecorderFile(new File(temp_entry, jobname + ".fls"), dir_path, inputs, outputs);
+			StringBuilder manifest = new StringBuilder();
+			for (Path input : inputs) {
+				File file = input.toFile();
+				if (!input.startsWith(temp_path) && !outputs.contains(input) && file.isFile())
+					CompileCache.appendInput(manifest, file, CompileCache.getPath(input, dir_path));
+			}
+			CompileCache.write(new File(temp_entry, MANIFEST_FILE), manifest.toString());
+			synchronized (this) {
+				CompileCache.delete(entry);
+				Files.move(temp_entry.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				Set<String> keep = new HashSet<String>(pins.keySet());
+				keep.add(entry.getName());
+				CompileCache.evict(cache_dir, max_size, keep);
+			}
+			num_builds.incrementAndGet();
+			return true;
+		} finally {
+			CompileCache.delete(temp_entry);
+		}
+	}
+
+	public File getDirectory() {
+		return cache_dir;
+	}
+
+	/**
+	 * Get the format to compile a document against, building it if the preamble of the document is stable
+	 *
+	 * @param command
+	 *            The command to compile the document
+	 * @param tex_src_file
+	 *            The main source file
+	 * @param shell
+	 *            Shell of the compilation, to build the format in
+	 * @return The format, to be released after the compilation, or {@code null} if the document is to be compiled
+	 *         normally
+	 */
+	Format getFormat(String[] command, File tex_src_file, TimedShell shell) {
+		int fmt_index = -1;
+		for (int i = 1; i < command.length - 1; i++) {
+			if (command[i].startsWith("-fmt="))
+				fmt_index = i;
+		}
+		if (fmt_index < 0)
+			return null;
+		String base_format = command[fmt_index].substring("-fmt=".length());
+		if (!supported_formats.contains(base_format))
+			return null;
+		try {
+			String[] lines = new String(Files.readAllBytes(tex_src_file.toPath()), LATIN1).split("\n", -1);
+			int end = -1;
+			for (int i = 0; i < lines.length && end < 0; i++) {
+				if (begin_document_pattern.matcher(lines[i]).matches()
+						|| end_of_dump_pattern.matcher(lines[i]).matches())
+					end = i;
+			}
+			if (end < 0)
+				return null;
+			StringBuilder preamble = new StringBuilder();
+			for (int i = 0; i < end; i++)
+				preamble.append(lines[i]).append('\n');
+			if (preamble.indexOf("\\documentclass") < 0 || undumpable_pattern.matcher(preamble).find())
+				return null;
+
+			String jobname = FileName.removeFileExtension(tex_src_file.getName());
+			String key = Checksums.sha1(command[0] + '\0' + base_format + '\0' + jobname + '\0' + preamble);
+			if (failed_keys.containsKey(key))
+				return null;
+			File dir = tex_src_file.getAbsoluteFile().getParentFile();
+			File entry = new File(cache_dir, key), fmt_file = new File(entry, jobname + ".fmt");
+			Object lock = new Object(), existing_lock = locks.putIfAbsent(key, lock);
+			if (existing_lock != null)
+				lock = existing_lock;
+			synchronized (lock) {
+				File manifest_file = new File(entry, MANIFEST_FILE);
+				if (!fmt_file.isFile() || !manifest_file.isFile()
+						|| !CompileCache.isValid(Streams.readTextFile(manifest_file), dir)) {
+					// a format made with some changed file is rebuilt at once, its preamble is stable, unless it is in
+					// use by another compilation
+					boolean stale = fmt_file.isFile();
+					if (stale && isPinned(key))
+						return null;
+					num_uses.putIfAbsent(key, new AtomicInteger());
+					if (!stale && num_uses.get(key).incrementAndGet() < min_uses)
+						return null;
+					if (!build(entry, base_format, jobname, preamble.toString(), dir, shell))
+						return null;
+					num_uses.remove(key);
+				}
+
+				// the body, with the preamble lines blank
+				StringBuilder body = new StringBuilder();
+				for (int i = 0; i < lines.length; i++) {
+					if (i > 0)
+						body.append('\n');
+					if (i >= end)
+						body.append(lines[i]);
+				}
+				// pinned before it is written so that it is not removed by the release of another compilation
+				File body_file = new File(entry, Checksums.sha1(body.toString()) + ".tex");
+				synchronized (this) {
+					pin(body_pins, body_file.getName());
+				}
+				try {
+					if (!body_file.isFile())
+						Files.write(body_file.toPath(), body.toString().getBytes(LATIN1));
+				} catch (IOException e) {
+					synchronized (this) {
+						unpin(body_pins, body_file.getName());
+					}
+					throw e;
+				}
+				// touch so that the entry becomes the most recently used
+				entry.setLastModified(System.currentTimeMillis());
+				num_hits.incrementAndGet();
+
+				String[] format_command = command.clone();
+				format_command[fmt_index] = "-fmt=" + fmt_file.getAbsolutePath();
+				format_command[format_command.length - 1] = body_file.getAbsolutePath();
+				synchronized (this) {
+					pin(pins, key);
+				}
+				return new Format(CompileDocument.insertOptions(format_command, "-jobname=" + jobname), entry,
+						body_file, dir);
+			}
+		} catch (IOException e) {
+			// compile normally
+			return null;
+		}
+	}
+
+	private synchronized boolean isPinned(String key) {
+		return pins.containsKey(key);
+	}
+
+	/**
+	 * Get the number of formats built
+	 */
+	public long getNumberOfBuilds() {
+		return num_builds.get();
+	}
+
+	/**
+	 * Get the number of preambles which failed to dump
+	 */
+	public long getNumberOfFailedBuilds() {
+		return num_failed_builds.get();
+	}
+
+	/**
+	 * Get the number of compilations against a cached format
+	 */
+	public long getNumberOfHits() {
+		return num_hits.get();
+	}
+
+}
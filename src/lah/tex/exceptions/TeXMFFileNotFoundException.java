@@ -1,5 +1,6 @@
 package lah.tex.exceptions;
 
+import java.io.File;
 import java.text.MessageFormat;
 
 import lah.spectre.Collections;
@@ -68,9 +69,14 @@ public class TeXMFFileNotFoundException extends SolvableException {
 		else if (!missing_file.contains("."))
 			// engines like tex, pdftex, etc
 			missing_packages = new String[] { missing_file };
-		else
-			// other input files
+		else {
+			// other input files: installing is pointless if the file is indexed in ls-R and present where the engine
+			// searches for it
+			String path = Task.getKpathseaResolver().resolveInSearchPath(missing_file);
+			if (path != null && new File(path).exists())
+				return null;
 			missing_packages = Task.findPackagesWithFile(missing_file);
+		}
 
 		return (missing_packages == null) ? null : new InstallPackage(missing_packages);
 	}
@@ -0,0 +1,146 @@
+package lah.tex.manage;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compact probabilistic set of strings: {@link #mightContain(String)} never returns {@code false} for an added string
+ * and returns {@code true} for other strings with a bounded (configurable) probability.
+ *
+ * Used to answer queries for files contained in no package without consulting the package index. The filter is
+ * serialized as {@code [number of bits][number of hashes][bits]} and can be read in place from a memory-mapped buffer.
+ *
+ * @author L.A.H.
+ *
+ */
+public class BloomFilter {
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Read a filter written by {@link #writeTo(DataOutputStream)}, without copying the bits
+	 *
+	 * @param data
+	 *            The serialized filter, e.g. a section of a memory-mapped file
+	 * @return The filter
+	 */
+	public static BloomFilter read(ByteBuffer data) {
+		ByteBuffer buffer = data.duplicate();
+		int num_bits = buffer.getInt(), num_hashes = buffer.getInt();
+		return new BloomFilter(buffer.slice().asLongBuffer(), num_bits, num_hashes);
+	}
+
+	/**
+	 * FNV-1a hash of the characters, independent of {@link String#hashCode()}; forced to be odd so that the probe
+	 * sequence does not degenerate
+	 */
+	private static int secondHash(String s) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		return mix(h) | 1;
+	}
+
+	private final LongBuffer bits;
+
+	private final int num_bits;
+
+	private final int num_hashes;
+
+	private final AtomicLong num_queries = new AtomicLong(), num_rejections = new AtomicLong();
+
+	/**
+	 * Create an empty filter
+	 *
+	 * @param expected_size
+	 *            Expected number of strings to add
+	 * @param false_positive_rate
+	 *            Desired probability (between 0 and 1) that {@link #mightContain(String)} returns {@code true} for a
+	 *            string not added
+	 */
+	public BloomFilter(int expected_size, double false_positive_rate) {
+		if (false_positive_rate <= 0 || false_positive_rate >= 1)
+			throw new IllegalArgumentException("False positive rate must be in (0, 1)");
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-Math.max(expected_size, 1) * Math.log(false_positive_rate) / (ln2 * ln2));
+		num_bits = (int) Math.min(Math.max(m, 64), Integer.MAX_VALUE - 63);
+		num_hashes = Math.max(1, (int) Math.round((double) num_bits / Math.max(expected_size, 1) * ln2));
+		bits = LongBuffer.wrap(new long[(num_bits + 63) >>> 6]);
+	}
+
+	private BloomFilter(LongBuffer bits, int num_bits, int num_hashes) {
+		this.bits = bits;
+		this.num_bits = num_bits;
+		this.num_hashes = num_hashes;
+	}
+
+	public void add(String s) {
+		int h1 = mix(s.hashCode()), h2 = secondHash(s);
+		for (int i = 0; i < num_hashes; i++) {
+			int b = ((h1 + i * h2) & Integer.MAX_VALUE) % num_bits;
+			bits.put(b >>> 6, bits.get(b >>> 6) | (1L << b));
+		}
+	}
+
+	/**
+	 * Get the number of queries answered by {@link #mightContain(String)}
+	 */
+	public long getNumberOfQueries() {
+		return num_queries.get();
+	}
+
+	/**
+	 * Get the number of queries for which {@link #mightContain(String)} returns {@code false} i.e. the lookup is short
+	 * circuited
+	 */
+	public long getNumberOfRejections() {
+		return num_rejections.get();
+	}
+
+	/**
+	 * Test whether a string might have been added to this filter
+	 *
+	 * @param s
+	 *            String to test
+	 * @return {@code false} if the string is definitely not added; {@code true} if it probably is
+	 */
+	public boolean mightContain(String s) {
+		num_queries.incrementAndGet();
+		int h1 = mix(s.hashCode()), h2 = secondHash(s);
+		for (int i = 0; i < num_hashes; i++) {
+			int b = ((h1 + i * h2) & Integer.MAX_VALUE) % num_bits;
+			if ((bits.get(b >>> 6) & (1L << b)) == 0) {
+				num_rejections.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Serialize this filter
+	 *
+	 * @param out
+	 *            The output
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(num_bits);
+		out.writeInt(num_hashes);
+		for (int i = 0; i < bits.capacity(); i++)
+			out.writeLong(bits.get(i));
+	}
+
+}
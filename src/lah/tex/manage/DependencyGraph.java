@@ -0,0 +1,250 @@
+package lah.tex.manage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.tex.AssetBundle;
+import lah.tex.IEnvironment;
+
+/**
+ * Package dependency graph where each package is identified by an integer id and the dependencies of a package are
+ * stored as an array of ids. Architecture specific dependencies (of the form {@code [name].ARCH}) are resolved once
+ * when the graph is loaded.
+ *
+ * The transitive closure of each package is computed as a {@link BitSet} of package ids and memoized. Closures which
+ * stop at a set of excluded packages (e.g. the installed ones) are memoized separately and dropped whenever the
+ * modification count of the set changes.
+ *
+ * @author L.A.H.
+ *
+ */
+class DependencyGraph {
+
+	/**
+	 * Memoized closures stopping at the excluded packages, valid for one modification count of the excluded set
+	 */
+	private static class PrunedClosures {
+
+		final Map<Integer, BitSet> closures = new ConcurrentHashMap<Integer, BitSet>();
+
+		final int version;
+
+		PrunedClosures(int version) {
+			this.version = version;
+		}
+
+	}
+
+	private static final Pattern line_pattern = Pattern.compile("([^ ]+) (.*)\n");
+
+	private static final Pattern single_space_pattern = Pattern.compile(" ");
+
+	/**
+	 * Load the graph from the precompiled assets
+	 *
+	 * @param bundle
+	 *            Bundle containing the section {@link IEnvironment#LAHTEX_DEPEND}
+	 * @param architecture
+	 *            Architecture to replace {@code ARCH} with
+	 * @return The dependency graph
+	 */
+	static DependencyGraph load(AssetBundle bundle, String architecture) {
+		DependencyGraph graph = new DependencyGraph(architecture);
+		int num_packages = bundle.size(IEnvironment.LAHTEX_DEPEND);
+		for (int i = 0; i < num_packages; i++)
+			graph.addDependencies(bundle.getKey(IEnvironment.LAHTEX_DEPEND, i),
+					single_space_pattern.split(bundle.getValue(IEnvironment.LAHTEX_DEPEND, i)));
+		graph.freeze();
+		return graph;
+	}
+
+	/**
+	 * Load the graph from the content of the text file "depend"
+	 *
+	 * @param depend_content
+	 *            Lines of format {@code [package_name] [dependency_1] [dependency_2] ... [dependency_n]}
+	 * @param architecture
+	 *            Architecture to replace {@code ARCH} with
+	 * @return The dependency graph
+	 */
+	static DependencyGraph load(String depend_content, String architecture) {
+		DependencyGraph graph = new DependencyGraph(architecture);
+		Matcher matcher = line_pattern.matcher(depend_content);
+		while (matcher.find())
+			graph.addDependencies(matcher.group(1), single_space_pattern.split(matcher.group(2)));
+		graph.freeze();
+		return graph;
+	}
+
+	private final String architecture;
+
+	/**
+	 * Memoized transitive closure of each package
+	 */
+	private final Map<Integer, BitSet> closures = new ConcurrentHashMap<Integer, BitSet>();
+
+	private int[][] dependencies;
+
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	private final List<String> names = new ArrayList<String>();
+
+	private volatile PrunedClosures pruned_closures;
+
+	private List<int[]> temp_dependencies = new ArrayList<int[]>();
+
+	private DependencyGraph(String architecture) {
+		this.architecture = architecture;
+	}
+
+	private void addDependencies(String pkg, String[] deps) {
+		int[] dep_ids = new int[deps.length];
+		int n = 0;
+		for (String d : deps) {
+			if (d.isEmpty())
+				continue;
+			if (d.endsWith(".ARCH"))
+				d = d.substring(0, d.length() - 4) + architecture;
+			dep_ids[n++] = getOrCreateId(d);
+		}
+		int id = getOrCreateId(pkg);
+		temp_dependencies.set(id, n == dep_ids.length ? dep_ids : Arrays.copyOf(dep_ids, n));
+	}
+
+	/**
+	 * Compact the temporary adjacency list into an array
+	 */
+	private void freeze() {
+		dependencies = temp_dependencies.toArray(new int[temp_dependencies.size()][]);
+		temp_dependencies = null;
+	}
+
+	/**
+	 * Compute the transitive closure of a package
+	 *
+	 * @param id
+	 *            Id of the package
+	 * @return Set of ids of all packages the package depends on (directly or indirectly), including itself; the
+	 *         returned set is shared and must not be modified
+	 */
+	BitSet getClosure(int id) {
+		return getClosure(id, closures, null);
+	}
+
+	/**
+	 * Compute the transitive closure of a package, stopping at excluded packages
+	 *
+	 * @param memo
+	 *            Memoized closures computed with the same excluded packages
+	 * @param excluded_packages
+	 *            Names of packages whose dependencies are not followed, {@code null} to follow all
+	 */
+	private BitSet getClosure(int id, Map<Integer, BitSet> memo, Set<String> excluded_packages) {
+		BitSet closure = memo.get(id);
+		if (closure != null)
+			return closure;
+		closure = new BitSet(dependencies.length);
+		int[] stack = new int[dependencies.length];
+		int top = 0;
+		stack[top++] = id;
+		closure.set(id);
+		while (top > 0) {
+			int p = stack[--top];
+			for (int d : dependencies[p]) {
+				if (closure.get(d) || (excluded_packages != null && excluded_packages.contains(names.get(d))))
+					continue;
+				BitSet known = memo.get(d);
+				if (known != null) {
+					// the closure of d is known, no need to traverse it again
+					closure.or(known);
+				} else {
+					closure.set(d);
+					stack[top++] = d;
+				}
+			}
+		}
+		memo.put(id, closure);
+		return closure;
+	}
+
+	/**
+	 * Extend a list of packages to contain all dependent packages as well
+	 *
+	 * @param packages
+	 *            Names of the initial packages
+	 * @param excluded_packages
+	 *            Names of packages to leave out (e.g. those already installed), can be {@code null}; the traversal
+	 *            stops at them so their own dependencies are not included either, unless another package needs them
+	 * @param excluded_version
+	 *            Modification count of the excluded packages; the closures memoized for them are reused as long as it
+	 *            does not change
+	 * @return The initial packages (in the same order) followed by all packages they depend on that are not excluded
+	 */
+	String[] getClosure(String[] packages, Set<String> excluded_packages, int excluded_version) {
+		Map<Integer, BitSet> memo;
+		if (excluded_packages == null || excluded_packages.isEmpty()) {
+			memo = closures;
+			excluded_packages = null;
+		} else {
+			PrunedClosures pruned = pruned_closures;
+			if (pruned == null || pruned.version != excluded_version)
+				pruned_closures = pruned = new PrunedClosures(excluded_version);
+			memo = pruned.closures;
+		}
+		Set<String> result = new LinkedHashSet<String>();
+		BitSet closure = new BitSet(dependencies.length);
+		for (String pkg : packages) {
+			result.add(pkg);
+			Integer id = ids.get(pkg);
+			if (id != null)
+				closure.or(getClosure(id, memo, excluded_packages));
+		}
+		for (int i = closure.nextSetBit(0); i >= 0; i = closure.nextSetBit(i + 1)) {
+			if (excluded_packages == null || !excluded_packages.contains(names.get(i)))
+				result.add(names.get(i));
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Get the id of a package
+	 *
+	 * @param pkg
+	 *            Name of the package
+	 * @return Id of the package or -1 if it does not appear in the graph
+	 */
+	int getId(String pkg) {
+		Integer id = ids.get(pkg);
+		return id == null ? -1 : id;
+	}
+
+	String getName(int id) {
+		return names.get(id);
+	}
+
+	private int getOrCreateId(String pkg) {
+		Integer id = ids.get(pkg);
+		if (id == null) {
+			id = names.size();
+			pkg = pkg.intern();
+			ids.put(pkg, id);
+			names.add(pkg);
+			temp_dependencies.add(new int[0]);
+		}
+		return id;
+	}
+
+	int size() {
+		return names.size();
+	}
+
+}
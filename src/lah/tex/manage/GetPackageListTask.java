@@ -1,19 +1,34 @@
 package lah.tex.manage;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import lah.spectre.multitask.TaskState;
+import lah.tex.AssetBundle;
 import lah.tex.IEnvironment;
 import lah.tex.Task;
 
 public class GetPackageListTask extends Task {
 
+	private static PackageCatalog package_catalog;
+
 	private static List<TLPackage> package_list;
 
-	private final Pattern line_pattern = Pattern.compile("([^ ]+) (.*)\n");
+	/**
+	 * Get the searchable catalog of all available packages, loading it on first use
+	 * 
+	 * @return The package catalog
+	 * @throws Exception
+	 */
+	public static synchronized PackageCatalog getPackageCatalog() throws Exception {
+		if (package_catalog == null) {
+			AssetBundle bundle = getAssetBundle();
+			if (bundle != null && bundle.hasSection(IEnvironment.LAHTEX_DESC))
+				package_catalog = PackageCatalog.load(bundle);
+			else
+				package_catalog = PackageCatalog.load(environment.readLahTeXAsset(IEnvironment.LAHTEX_DESC));
+		}
+		return package_catalog;
+	}
 
 	@Override
 	public String getDescription() {
@@ -31,18 +46,7 @@ public class GetPackageListTask extends Task {
 		if (package_list != null)
 			return;
 		try {
-			// String desc = Streams.readTextFile(environment
-			// .getPackageDescriptionFile());
-			String desc = environment.readLahTeXAsset(IEnvironment.LAHTEX_DESC);
-			Matcher matcher = line_pattern.matcher(desc);
-			List<TLPackage> temp_package_list = new ArrayList<TLPackage>();
-			while (matcher.find()) {
-				String name = matcher.group(1);
-				String shortdesc = matcher.group(2);
-				TLPackage pkg = new TLPackage(name, shortdesc);
-				temp_package_list.add(pkg);
-			}
-			package_list = temp_package_list;
+			package_list = getPackageCatalog().getPackages();
 			setState(TaskState.COMPLETE);
 		} catch (Exception e) {
 			setException(e);
@@ -0,0 +1,205 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.spectre.stream.Streams;
+
+/**
+ * Append-only on-disk journal of the progress of an installation so that an interrupted installation can resume
+ * without redoing the packages already done. Each record is a line {@code [stage] [package] [checksum] [archive]} and
+ * the latest record of a package wins.
+ *
+ * The journal only describes an unfinished installation: it is deleted once the installation completes. There is one
+ * journal per set of requested packages so that concurrent installations never write to the same journal.
+ *
+ * @author L.A.H.
+ *
+ */
+class InstallJournal {
+
+	static class Entry {
+
+		final File archive;
+
+		final String checksum;
+
+		final Stage stage;
+
+		Entry(Stage stage, String checksum, File archive) {
+			this.stage = stage;
+			this.checksum = checksum;
+			this.archive = archive;
+		}
+
+	}
+
+	/**
+	 * Stages of installation of a package, in order
+	 */
+	static enum Stage {
+		FETCHED, EXTRACTED, RELOCATED
+	}
+
+	private static final Pattern record_pattern = Pattern.compile("([A-Z]+) ([^ ]+) ([0-9a-f]+) (.*)\n");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Compute the SHA-1 checksum of a file
+	 *
+	 * @param file
+	 *            The file
+	 * @return Checksum in lower case hexadecimal
+	 * @throws IOException
+	 */
+	static String checksum(File file) throws IOException {
+		MessageDigest digest = getDigest();
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[1 << 16];
+			int count;
+			while ((count = input.read(buffer)) > 0)
+				digest.update(buffer, 0, count);
+		} finally {
+			input.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest getDigest() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Get the journal file of the installation of some packages
+	 *
+	 * @param dir
+	 *            Directory of the journals
+	 * @param packages
+	 *            The requested packages, in any order
+	 * @return The journal file, the same for every installation of the same packages
+	 * @throws IOException
+	 */
+	static File getFile(File dir, String[] packages) throws IOException {
+		String[] sorted_packages = packages.clone();
+		Arrays.sort(sorted_packages);
+		MessageDigest digest = getDigest();
+		for (String pkg : sorted_packages)
+			digest.update((pkg + "\n").getBytes(UTF8));
+		return new File(dir, "install-" + toHex(digest.digest()) + ".journal");
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(2 * bytes.length);
+		for (byte b : bytes)
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return result.toString();
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private final File journal_file;
+
+	private FileChannel output;
+
+	/**
+	 * Open the journal, loading the records of a previous unfinished installation if any
+	 *
+	 * @param journal_file
+	 *            The journal file
+	 */
+	InstallJournal(File journal_file) {
+		this.journal_file = journal_file;
+		if (!journal_file.exists())
+			return;
+		try {
+			Matcher matcher = record_pattern.matcher(Streams.readTextFile(journal_file));
+			while (matcher.find()) {
+				try {
+					entries.put(matcher.group(2), new Entry(Stage.valueOf(matcher.group(1)), matcher.group(3),
+							new File(matcher.group(4))));
+				} catch (IllegalArgumentException e) {
+					// unknown stage
+				}
+			}
+		} catch (IOException e) {
+			// a corrupted journal only means that no work is skipped
+		}
+	}
+
+	/**
+	 * Close and delete the journal, to be called when the installation completes
+	 */
+	synchronized void clear() {
+		entries.clear();
+		close();
+		journal_file.delete();
+	}
+
+	synchronized void close() {
+		if (output == null)
+			return;
+		try {
+			output.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		output = null;
+	}
+
+	/**
+	 * Get the latest record of a package
+	 *
+	 * @param pkg
+	 *            Name of the package
+	 * @return The latest record or {@code null} if there is none
+	 */
+	synchronized Entry get(String pkg) {
+		return entries.get(pkg);
+	}
+
+	/**
+	 * Append a record to the journal; the record is forced to the storage device before this method returns
+	 *
+	 * @param pkg
+	 *            Name of the package
+	 * @param checksum
+	 *            Checksum of the archive of the package
+	 * @param archive
+	 *            The archive of the package
+	 * @param stage
+	 *            The stage just completed
+	 * @throws IOException
+	 */
+	synchronized void record(String pkg, String checksum, File archive, Stage stage) throws IOException {
+		if (output == null) {
+			journal_file.getParentFile().mkdirs();
+			output = new FileOutputStream(journal_file, true).getChannel();
+		}
+		ByteBuffer record = ByteBuffer.wrap((stage.name() + " " + pkg + " " + checksum + " "
+				+ archive.getAbsolutePath() + "\n").getBytes(UTF8));
+		while (record.hasRemaining())
+			output.write(record);
+		output.force(false);
+		entries.put(pkg, new Entry(stage, checksum, archive));
+	}
+
+}
@@ -1,22 +1,39 @@
 package lah.tex.manage;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import lah.spectre.Collections;
 import lah.spectre.multitask.TaskState;
+import lah.spectre.stream.IBufferProcessor;
 import lah.spectre.stream.Streams;
+import lah.tex.AssetBundle;
 import lah.tex.IEnvironment;
 import lah.tex.Task;
 import lah.tex.exceptions.SystemFileNotFoundException;
@@ -34,37 +51,214 @@ public class InstallPackage extends Task {
 	}
 
 	/**
-	 * Map each package to a list of packages it depends on
+	 * Cache of retrieved package archives
 	 */
-	private static Map<String, String[]> dependency_map;
+	private static PackageArchiveCache archive_cache;
 
-	private static final Pattern line_pattern = Pattern.compile("([^ ]+) (.*)\n");
+	/**
+	 * Default bound of the size of the archive cache
+	 */
+	public static final long DEFAULT_ARCHIVE_CACHE_SIZE = 512L << 20;
+
+	/**
+	 * Dependency graph of all packages
+	 */
+	private static DependencyGraph dependency_graph;
+
+	/**
+	 * Registry of the installed packages
+	 */
+	private static InstalledPackages installed_packages;
 
 	/**
 	 * File extension for TeX Live package
 	 */
 	public static final String PACKAGE_EXTENSION = ".tar.xz";
 
-	private static final Pattern single_space_pattern = Pattern.compile(" ");
-
 	/**
 	 * RegEx pattern for the sub-directories in TEXMF_ROOT
 	 */
 	private static final Pattern texmf_subdir_patterns = Pattern.compile("texmf.*|readme.*|tlpkg");
 
-	private static void loadDependMap() throws Exception {
-		Map<String, String[]> temp_depend = new TreeMap<String, String[]>();
-		String depend_content = environment.readLahTeXAsset(IEnvironment.LAHTEX_DEPEND);
-		Matcher matcher = line_pattern.matcher(depend_content);
-		while (matcher.find()) {
-			String p = matcher.group(1);
-			String[] ds = single_space_pattern.split(matcher.group(2));
-			temp_depend.put(p, ds);
+	/**
+	 * Maximum number of packages being retrieved (network bound) and being extracted (disk bound) at the same time
+	 */
+	private static int max_concurrent_fetches = 4,
+			max_concurrent_extractions = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService fetch_executor, extract_executor;
+
+	/**
+	 * Maximum number of packages retrieved ahead of the extraction i.e. retrieved or being retrieved but not yet
+	 * extracted
+	 */
+	private static int max_prefetched_packages = 8;
+
+	/**
+	 * Time out (in milliseconds) for extracting a package with busybox
+	 */
+	private static final long busybox_extraction_timeout = 600000;
+
+	/**
+	 * Get the dependency graph, loading it on first use
+	 * 
+	 * @return The graph of all packages
+	 * @throws Exception
+	 */
+	private static synchronized DependencyGraph getDependencyGraph() throws Exception {
+		if (dependency_graph == null) {
+			AssetBundle bundle = getAssetBundle();
+			if (bundle != null && bundle.hasSection(IEnvironment.LAHTEX_DEPEND))
+				dependency_graph = DependencyGraph.load(bundle, environment.getArchitecture());
+			else
+				dependency_graph = DependencyGraph.load(environment.readLahTeXAsset(IEnvironment.LAHTEX_DEPEND),
+						environment.getArchitecture());
 		}
-		dependency_map = temp_depend;
+		return dependency_graph;
+	}
+
+	/**
+	 * Get the cache of package archives, by default the directory "tlpkg/archives" of the TeX root bounded by
+	 * {@link #DEFAULT_ARCHIVE_CACHE_SIZE}
+	 * 
+	 * @return The archive cache
+	 */
+	public static synchronized PackageArchiveCache getArchiveCache() {
+		if (archive_cache == null)
+			archive_cache = new PackageArchiveCache(new File(environment.getTeXMFRootDirectory() + "/tlpkg/archives"),
+					DEFAULT_ARCHIVE_CACHE_SIZE);
+		return archive_cache;
+	}
+
+	private static synchronized ExecutorService getExtractExecutor() {
+		if (extract_executor == null)
+			extract_executor = newExecutor(max_concurrent_extractions, "install-extract");
+		return extract_executor;
+	}
+
+	private static synchronized ExecutorService getFetchExecutor() {
+		if (fetch_executor == null)
+			fetch_executor = newExecutor(max_concurrent_fetches, "install-fetch");
+		return fetch_executor;
+	}
+
+	/**
+	 * Get the registry of installed packages, loading it on first use
+	 * 
+	 * @return The registry of packages installed in the TeX directory
+	 */
+	public static synchronized InstalledPackages getInstalledPackageRegistry() {
+		if (installed_packages == null)
+			installed_packages = new InstalledPackages(environment.getTeXMFRootDirectory());
+		return installed_packages;
+	}
+
+	private static ExecutorService newExecutor(int num_threads, final String name) {
+		return Executors.newFixedThreadPool(num_threads, new ThreadFactory() {
+
+			private final AtomicInteger num_created = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + num_created.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+	}
+
+	/**
+	 * Set the number of packages to retrieve and to extract at the same time; installations in progress continue
+	 * with the previous setting
+	 * 
+	 * @param max_fetches
+	 *            Maximum number of packages retrieved concurrently
+	 * @param max_extractions
+	 *            Maximum number of packages extracted concurrently
+	 */
+	public static synchronized void setConcurrency(int max_fetches, int max_extractions) {
+		max_concurrent_fetches = Math.max(1, max_fetches);
+		max_concurrent_extractions = Math.max(1, max_extractions);
+		if (fetch_executor != null)
+			fetch_executor.shutdown();
+		if (extract_executor != null)
+			extract_executor.shutdown();
+		fetch_executor = extract_executor = null;
+	}
+
+	/**
+	 * Use a different cache of package archives, for example one located outside of the TeX directory and shared by
+	 * several installations
+	 * 
+	 * @param cache
+	 *            The archive cache
+	 */
+	public static synchronized void setArchiveCache(PackageArchiveCache cache) {
+		archive_cache = cache;
+	}
+
+	/**
+	 * Set the number of packages which can be retrieved ahead of the extraction; a larger window hides more network
+	 * latency at the cost of more archives kept on disk at the same time
+	 * 
+	 * @param max_prefetched
+	 *            Maximum number of packages retrieved but not yet extracted
+	 */
+	public static synchronized void setPrefetchWindow(int max_prefetched) {
+		max_prefetched_packages = Math.max(1, max_prefetched);
 	}
 
-	private int num_success_packages;
+	/**
+	 * Lock guarding {@link #extractions_cancelled} and {@link #num_running_extractions}
+	 */
+	private final Object extraction_lock = new Object();
+
+	/**
+	 * Whether the extractions not yet started are cancelled
+	 */
+	private boolean extractions_cancelled;
+
+	/**
+	 * Exception which stops the installation, raised in one of the executor threads
+	 */
+	private volatile SystemFileNotFoundException fatal_exception;
+
+	/**
+	 * Paths (relative to the TeX root directory, before relocation) of the files extracted by this task
+	 */
+	private final Queue<String> extracted_files = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Absolute paths of the files installed by this task, known once the extracted files are relocated
+	 */
+	private final Queue<String> installed_files = new ConcurrentLinkedQueue<String>();
+
+	private final AtomicLong num_extracted_bytes = new AtomicLong(), num_extracted_entries = new AtomicLong();
+
+	private volatile boolean has_lualibs;
+
+	/**
+	 * Whether some package is installed without knowing its files (i.e. extracted by an interrupted run)
+	 */
+	private volatile boolean has_unlisted_files;
+
+	/**
+	 * Journal of the packages done by the current run or an interrupted previous run
+	 */
+	private InstallJournal journal;
+
+	/**
+	 * Checksums of the archives of the packages, to be recorded in the journal
+	 */
+	private String[] package_checksums;
+
+	/**
+	 * Number of extractions in progress, which write to the TeX root directory
+	 */
+	private int num_running_extractions;
+
+	private volatile int num_success_packages;
 
 	private PackageState[] package_states;
 
@@ -72,52 +266,73 @@ public class InstallPackage extends Task {
 
 	private String[] pending_packages;
 
+	/**
+	 * Permits for packages to be retrieved ahead of the extraction in the current run
+	 */
+	private Semaphore prefetch_window;
+
 	public InstallPackage(String[] packages) {
 		this.packages = packages;
 	}
 
 	/**
-	 * Extend a list of packages to contain all dependent packages as well
+	 * Extend a list of packages to contain all dependent packages as well, except for those already installed. The
+	 * initial packages are always kept so that they can be reinstalled if corrupted.
 	 * 
 	 * @param initial_packages
 	 */
 	private String[] addAllDependentPackages(String[] initial_packages) throws Exception {
-		if (dependency_map == null)
-			loadDependMap();
-
-		// Queue containing the packages whose dependencies are to be added
-		Queue<String> queue = new LinkedList<String>();
-
-		// Set of all packages found, for efficient membership testing to decide whether a package is already processed
-		Set<String> found_packages = new TreeSet<String>();
-
-		List<String> pkgs_to_install = new LinkedList<String>();
+		InstalledPackages registry = getInstalledPackageRegistry();
+		int version = registry.getVersion();
+		return getDependencyGraph().getClosure(initial_packages, registry.getPackages(), version);
+	}
 
-		// Initialize the queue & found packages with the input list
-		for (String pkg : initial_packages) {
-			queue.add(pkg);
-			found_packages.add(pkg);
-			pkgs_to_install.add(pkg);
+	/**
+	 * Mark the start of an extraction
+	 * 
+	 * @return {@code false} if the extractions are cancelled, in which case the extraction must not start
+	 */
+	private boolean beginExtraction() {
+		synchronized (extraction_lock) {
+			if (extractions_cancelled)
+				return false;
+			num_running_extractions++;
+			return true;
 		}
+	}
 
-		// Process until there is no more package to process i.e. we have added all the necessary dependencies
-		while (!queue.isEmpty()) {
-			// Pick a pending package & add its dependency that has not been added earlier
-			String pkg = queue.poll();
-			String[] pkg_deps = dependency_map.get(pkg);
-			if (pkg_deps != null) {
-				for (String d : pkg_deps) {
-					if (d.endsWith(".ARCH"))
-						d = d.substring(0, d.length() - 4) + environment.getArchitecture();
-					if (!found_packages.contains(d)) {
-						queue.add(d);
-						found_packages.add(d);
-						pkgs_to_install.add(d);
-					}
+	/**
+	 * Cancel the retrievals and extractions and wait for the extractions already started to finish, so that no file
+	 * is written to the TeX root directory after this method returns
+	 * 
+	 * @param futures
+	 *            The retrieval and extraction jobs
+	 */
+	private void cancelAndWait(Queue<Future<?>> futures) {
+		synchronized (extraction_lock) {
+			extractions_cancelled = true;
+		}
+		for (Future<?> f : futures)
+			f.cancel(true);
+		boolean interrupted = false;
+		synchronized (extraction_lock) {
+			while (num_running_extractions > 0) {
+				try {
+					extraction_lock.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
 				}
 			}
 		}
-		return pkgs_to_install.toArray(new String[pkgs_to_install.size()]);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void endExtraction() {
+		synchronized (extraction_lock) {
+			num_running_extractions--;
+			extraction_lock.notifyAll();
+		}
 	}
 
 	/**
@@ -145,24 +360,44 @@ public class InstallPackage extends Task {
 		return strings.getString("install_") + Collections.stringOfArray(packages, " ", null, null);
 	}
 
+	/**
+	 * Get the files extracted so far
+	 * 
+	 * @return Paths, relative to the TeX root directory, of the files extracted from the packages (before being
+	 *         relocated)
+	 */
+	public Queue<String> getExtractedFiles() {
+		return extracted_files;
+	}
+
+	/**
+	 * Get the total size of the files extracted so far (only known for archives extracted in process)
+	 */
+	public long getNumberOfExtractedBytes() {
+		return num_extracted_bytes.get();
+	}
+
+	/**
+	 * Get the number of archive entries extracted so far
+	 */
+	public long getNumberOfExtractedEntries() {
+		return num_extracted_entries.get();
+	}
+
+	/**
+	 * Get the files installed by the last run, at their final location
+	 * 
+	 * @return Absolute paths of the installed files
+	 */
+	public Queue<String> getInstalledFiles() {
+		return installed_files;
+	}
+
 	public Set<String> getInstalledPackages() {
-		File tlpobj_dir = new File(environment.getTeXMFRootDirectory() + "/tlpkg/tlpobj");
-		if (!tlpobj_dir.exists())
-			return null;
-
-		Set<String> installed_packages = new TreeSet<String>();
-		File[] tlpobj_files = tlpobj_dir.listFiles();
-		final int suffix_length = ".tlpobj".length();
-		for (File f : tlpobj_files) {
-			String fname = f.getName();
-			if (fname.endsWith(".tlpobj")) {
-				installed_packages.add(fname.substring(0, fname.length() - suffix_length));
-			}
-		}
-		return installed_packages;
+		return getInstalledPackageRegistry().getSortedPackages();
 	}
 
-	public PackageState getPackageStatus(int position) {
+	public synchronized PackageState getPackageStatus(int position) {
 		return package_states[position];
 	}
 
@@ -186,9 +421,49 @@ public class InstallPackage extends Task {
 			return super.getStatusString();
 	}
 
+	/**
+	 * Move a file or directory tree to a target location, merging it with the existing target directory if any. Files
+	 * and directories are renamed whenever possible; a file is only copied when it cannot be renamed (e.g. across file
+	 * systems).
+	 * 
+	 * @param source
+	 *            Source file or directory, removed after the merge
+	 * @param target
+	 *            Target location
+	 * @throws IOException
+	 */
+	private static void merge(Path source, Path target) throws IOException {
+		if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+			if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+				try {
+					Files.move(source, target);
+					return;
+				} catch (IOException e) {
+					// non-empty directory cannot be renamed to another file system, merge the entries one by one
+					Files.createDirectories(target);
+				}
+			}
+			if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+				List<Path> children = new ArrayList<Path>();
+				DirectoryStream<Path> stream = Files.newDirectoryStream(source);
+				try {
+					for (Path child : stream)
+						children.add(child);
+				} finally {
+					stream.close();
+				}
+				for (Path child : children)
+					merge(child, target.resolve(child.getFileName().toString()));
+				Files.delete(source);
+				return;
+			}
+		}
+		Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+	}
+
 	/**
 	 * Relocate the extracted files and directories into the standard TeX directory structure (i.e. texmf and
-	 * texmf-dist)
+	 * texmf-dist) and make the extracted binaries executable
 	 * 
 	 * @throws Exception
 	 */
@@ -197,6 +472,7 @@ public class InstallPackage extends Task {
 		if (!texmf_root_file.exists())
 			return;
 		File texmf_dist = new File(environment.getTeXMFRootDirectory() + "/texmf-dist");
+		File bin_parent = new File(environment.getTeXMFBinaryDirectory() + "/../..").getCanonicalFile();
 
 		File[] files = texmf_root_file.listFiles();
 		if (files == null)
@@ -208,26 +484,301 @@ public class InstallPackage extends Task {
 			if (f.isFile())
 				continue;
 			if (f.getName().equals("bin")) {
-				shell.fork(
-						new String[] { environment.getBusyBox(), "cp", "-r", f.getName(),
-								environment.getTeXMFBinaryDirectory() + "/../../" }, f.getParentFile());
-				shell.fork(new String[] { environment.getBusyBox(), "rm", "-R", f.getName() }, f.getParentFile());
-				shell.fork(
-						new String[] { environment.getBusyBox(), "chmod", "-R", "700",
-								environment.getTeXMFBinaryDirectory() + "/../../" }, null);
+				if (!f.getCanonicalFile().equals(new File(bin_parent, "bin")))
+					merge(f.toPath(), new File(bin_parent, "bin").toPath());
 			} else if (!matcher.reset(f.getName()).matches()) {
 				// this directory should not be in TEXMF_ROOT, relocate it under
 				// texmf-dist sub-directory
 				if (!texmf_dist.exists())
 					texmf_dist.mkdirs();
-				shell.fork(
-						new String[] { environment.getBusyBox(), "cp", "-R", "-f", f.getName(),
-								texmf_dist.getAbsolutePath() + "/" }, f.getParentFile());
-				shell.fork(new String[] { environment.getBusyBox(), "rm", "-R", f.getName() }, f.getParentFile());
+				merge(f.toPath(), new File(texmf_dist, f.getName()).toPath());
+			}
+		}
+
+		// Record the final locations, only fixing permissions of the binaries just extracted
+		for (String path : extracted_files) {
+			String top_dir = path.substring(0, Math.max(path.indexOf('/'), 0));
+			File installed_file;
+			if (top_dir.equals("bin")) {
+				installed_file = new File(bin_parent, path);
+				installed_file.setReadable(true, true);
+				installed_file.setWritable(true, true);
+				installed_file.setExecutable(true, true);
+			} else if (!top_dir.isEmpty() && !matcher.reset(top_dir).matches())
+				installed_file = new File(texmf_dist, path);
+			else
+				installed_file = new File(texmf_root_file, path);
+			installed_files.add(installed_file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Extract a package archive with busybox; used for archives which cannot be decoded by {@link XZInputStream}
+	 * 
+	 * @param pkg_file
+	 *            The package file
+	 * @return Paths of the extracted files
+	 * @throws Exception
+	 */
+	private List<String> extractWithBusyBox(File pkg_file) throws Exception {
+		// Make the package file available in TeXMF root (if necessary) without copying it if possible
+		StagedFile staged_file = StagedFile.stage(pkg_file, new File(environment.getTeXMFRootDirectory()));
+		pkg_file = staged_file.getFile();
+		// Extract the package.tar.xz file, collecting the paths printed in verbose mode
+		final List<String> paths = new ArrayList<String>();
+		final StringBuilder line = new StringBuilder();
+		try {
+			// extractions run concurrently and the shared shell is not reentrant, each one forks in a shell of its own
+			newShell(new File(environment.getTeXMFRootDirectory() + "/texmf-var/tmp")).fork(
+					new String[] { environment.getBusyBox(), "tar", "xvf", pkg_file.getName() },
+					pkg_file.getParentFile(), new IBufferProcessor() {
+
+						@Override
+						public void processBuffer(byte[] buffer, int count) throws Exception {
+							for (int k = 0; k < count; k++) {
+								if (buffer[k] == '\n') {
+									if (line.length() > 0 && line.charAt(line.length() - 1) != '/')
+										paths.add(line.toString());
+									line.setLength(0);
+								} else
+									line.append((char) (buffer[k] & 0xFF));
+							}
+						}
+
+					}, busybox_extraction_timeout);
+		} finally {
+			staged_file.release();
+		}
+		num_extracted_entries.addAndGet(paths.size());
+		return paths;
+	}
+
+	/**
+	 * Extract a retrieved package (executed by the extraction executor)
+	 * 
+	 * @param i
+	 *            Position of the package in {@link #pending_packages}
+	 * @param pkg_file
+	 *            The package file
+	 * @param checksum
+	 *            Checksum of the package file
+	 */
+	private void extractPackage(int i, File pkg_file, String checksum) {
+		try {
+			List<String> paths;
+			try {
+				paths = extractWithJava(pkg_file);
+			} catch (XZInputStream.UnsupportedFormatException e) {
+				paths = extractWithBusyBox(pkg_file);
+			}
+			extracted_files.addAll(paths);
+			journal.record(pending_packages[i], checksum, pkg_file, InstallJournal.Stage.EXTRACTED);
+			onPackageExtracted(i);
+		} catch (SystemFileNotFoundException e) {
+			fatal_exception = e;
+			setPackageState(i, PackageState.PACKAGE_FAIL);
+		} catch (Exception e) {
+			// including InterruptedException when the installation is cancelled
+			setPackageState(i, PackageState.PACKAGE_FAIL);
+		}
+	}
+
+	/**
+	 * Decode and extract a package archive directly to the TeX root directory, without copying it or spawning a
+	 * process
+	 * 
+	 * @param pkg_file
+	 *            The package file
+	 * @return Paths of the extracted files
+	 * @throws IOException
+	 */
+	private List<String> extractWithJava(File pkg_file) throws IOException {
+		TarExtractor extractor = new TarExtractor(new File(environment.getTeXMFRootDirectory()),
+				new TarExtractor.ProgressListener() {
+
+					@Override
+					public void onEntryExtracted(String path, long size) {
+						num_extracted_entries.incrementAndGet();
+						num_extracted_bytes.addAndGet(size);
+					}
+
+				});
+		InputStream input = new XZInputStream(new BufferedInputStream(new FileInputStream(pkg_file), 1 << 16));
+		try {
+			return extractor.extract(input);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Retrieve the archive of a package from the archive cache, or from the environment (adding it to the cache) if it
+	 * is not cached
+	 * 
+	 * @param pkg
+	 *            Name of the package
+	 * @return The archive, pinned in the cache until it is released, or {@code null} if the package cannot be retrieved
+	 * @throws Exception
+	 */
+	private File fetchArchive(String pkg) throws Exception {
+		PackageArchiveCache cache = getArchiveCache();
+		String revision = (task_manager == null ? null : task_manager.getPackageRevision(pkg));
+		if (revision != null) {
+			File cached_archive = cache.get(pkg, revision);
+			if (cached_archive != null)
+				return cached_archive;
+		}
+		File pkg_file = environment.getPackage(pkg);
+		if (pkg_file == null || revision == null)
+			return pkg_file;
+		try {
+			return cache.put(pkg, revision, pkg_file, InstallJournal.checksum(pkg_file));
+		} catch (IOException e) {
+			// install without caching
+			return pkg_file;
+		}
+	}
+
+	/**
+	 * Retrieve a package and submit it for extraction (executed by the fetch executor)
+	 * 
+	 * @param i
+	 *            Position of the package in {@link #pending_packages}
+	 * @param remaining
+	 *            Latch to count down when the package is done (successfully or not)
+	 * @param futures
+	 *            Queue to add the extraction job to, so that it can be cancelled
+	 */
+	private void fetchPackage(final int i, final CountDownLatch remaining, Queue<Future<?>> futures) {
+		if (fatal_exception != null || Thread.currentThread().isInterrupted()) {
+			remaining.countDown();
+			return;
+		}
+		setPackageState(i, PackageState.PACKAGE_INSTALLING);
+		// TODO Fix this: return on failure to install requested package
+		// only continue if some dependent package is missing
+		try {
+			// Skip the package if an interrupted run already extracted it
+			InstallJournal.Entry entry = journal.get(pending_packages[i]);
+			if (entry != null && entry.stage != InstallJournal.Stage.FETCHED) {
+				package_checksums[i] = entry.checksum;
+				has_unlisted_files = true;
+				onPackageExtracted(i);
+				remaining.countDown();
+				return;
+			}
+			// Wait until there is room in the window of retrieved packages pending extraction
+			final Semaphore window = prefetch_window;
+			window.acquire();
+			final PackageArchiveCache cache = getArchiveCache();
+			File pinned_archive = null;
+			boolean submitted = false;
+			try {
+				// Retrieve the package, unless the archive fetched by an interrupted run is still intact; the archive
+				// stays pinned in the cache until it is extracted
+				final File pkg_file;
+				final String checksum;
+				if (entry != null && cache.pin(entry.archive))
+					pinned_archive = entry.archive;
+				if (entry != null && entry.archive.exists()
+						&& entry.checksum.equals(InstallJournal.checksum(entry.archive))) {
+					pkg_file = entry.archive;
+					checksum = entry.checksum;
+				} else {
+					if (pinned_archive != null) {
+						cache.release(pinned_archive);
+						pinned_archive = null;
+					}
+					pkg_file = pinned_archive = fetchArchive(pending_packages[i]);
+					if (pkg_file == null) {
+						setPackageState(i, PackageState.PACKAGE_FAIL);
+						remaining.countDown();
+						return;
+					}
+					String cached_checksum = cache.getChecksum(pkg_file);
+					checksum = (cached_checksum != null ? cached_checksum : InstallJournal.checksum(pkg_file));
+					journal.record(pending_packages[i], checksum, pkg_file, InstallJournal.Stage.FETCHED);
+				}
+				package_checksums[i] = checksum;
+				// the archive, the window slot and the latch are released once, by the job or, if the job is cancelled
+				// before it starts (and therefore never runs), when it is cancelled
+				final AtomicBoolean started = new AtomicBoolean(), released = new AtomicBoolean();
+				final Runnable release = new Runnable() {
+
+					@Override
+					public void run() {
+						if (!released.compareAndSet(false, true))
+							return;
+						cache.release(pkg_file);
+						window.release();
+						remaining.countDown();
+					}
+
+				};
+				FutureTask<Void> extraction = new FutureTask<Void>(new Runnable() {
+
+					@Override
+					public void run() {
+						started.set(true);
+						try {
+							if (beginExtraction()) {
+								try {
+									extractPackage(i, pkg_file, checksum);
+								} finally {
+									endExtraction();
+								}
+							} else
+								setPackageState(i, PackageState.PACKAGE_FAIL);
+						} finally {
+							release.run();
+						}
+					}
+
+				}, null) {
+
+					@Override
+					protected void done() {
+						if (isCancelled() && !started.get()) {
+							setPackageState(i, PackageState.PACKAGE_FAIL);
+							release.run();
+						}
+					}
+
+				};
+				getExtractExecutor().execute(extraction);
+				submitted = true;
+				futures.add(extraction);
+			} finally {
+				if (!submitted) {
+					if (pinned_archive != null)
+						cache.release(pinned_archive);
+					window.release();
+				}
 			}
+		} catch (SystemFileNotFoundException e) {
+			fatal_exception = e;
+			setPackageState(i, PackageState.PACKAGE_FAIL);
+			remaining.countDown();
+		} catch (Exception e) {
+			// including InterruptedException and RejectedExecutionException
+			setPackageState(i, PackageState.PACKAGE_FAIL);
+			remaining.countDown();
 		}
 	}
 
+	/**
+	 * Mark a package as successfully extracted; it is registered as installed only once its files are relocated
+	 * 
+	 * @param i
+	 *            Position of the package in {@link #pending_packages}
+	 */
+	private void onPackageExtracted(int i) {
+		setPackageState(i, PackageState.PACKAGE_SUCCESSFULLY_INSTALLED);
+		if (pending_packages[i].equals("lualibs"))
+			has_lualibs = true;
+		environment.onStateChanged(this); // notify environment directly
+	}
+
 	@Override
 	public void run() {
 		reset();
@@ -248,55 +799,89 @@ public class InstallPackage extends Task {
 			}
 		}
 
-		boolean has_lualibs = false;
-		for (int i = 0; i < pending_packages.length; i++) {
-			if (Thread.interrupted())
-				break;
-			setPackageState(i, PackageState.PACKAGE_INSTALLING);
-			// TODO Fix this: return on failure to install requested package
-			// only continue if some dependent package is missing
-			try {
-				// Retrieve the package
-				File pkg_file = environment.getPackage(pending_packages[i]);
-				if (pkg_file == null) {
-					setPackageState(i, PackageState.PACKAGE_FAIL);
-					continue;
-				}
-				// Copy the package file to TeXMF root (if necessary)
-				if (!pkg_file.getParentFile().getAbsolutePath().equals(environment.getTeXMFRootDirectory())) {
-					File new_pkg_file = new File(environment.getTeXMFRootDirectory() + "/" + pkg_file.getName());
-					Streams.streamToFile(new FileInputStream(pkg_file), new_pkg_file, true, false);
-					pkg_file = new_pkg_file;
-				}
-				// Extract the package.tar.xz file
-				shell.fork(new String[] { environment.getBusyBox(), "tar", "xf", pkg_file.getName() },
-						pkg_file.getParentFile());
-				setPackageState(i, PackageState.PACKAGE_SUCCESSFULLY_INSTALLED);
-				has_lualibs = has_lualibs || pending_packages[i].equals("lualibs");
-				environment.onStateChanged(this); // notify environment directly
-			} catch (SystemFileNotFoundException e) {
-				setException(e);
-				return;
-			} catch (InterruptedException e) {
-				break;
-			} catch (Exception e) {
-				setPackageState(i, PackageState.PACKAGE_FAIL);
+		// Fetch and extract the packages in a pipeline: packages are retrieved in the order of the closure ahead of
+		// their extraction, up to the prefetch window; all packages in the closure are independent at this stage
+		// since files are only moved to their final location by relocate() once every package is extracted
+		has_lualibs = false;
+		has_unlisted_files = false;
+		fatal_exception = null;
+		extracted_files.clear();
+		installed_files.clear();
+		num_extracted_bytes.set(0);
+		num_extracted_entries.set(0);
+		package_checksums = new String[pending_packages.length];
+		try {
+			journal = new InstallJournal(InstallJournal.getFile(new File(environment.getTeXMFRootDirectory()
+					+ "/tlpkg"), packages));
+		} catch (IOException e) {
+			setException(e);
+			return;
+		}
+		synchronized (InstallPackage.class) {
+			prefetch_window = new Semaphore(max_prefetched_packages);
+		}
+		synchronized (extraction_lock) {
+			extractions_cancelled = false;
+		}
+		final CountDownLatch remaining = new CountDownLatch(pending_packages.length);
+		final Queue<Future<?>> futures = new ConcurrentLinkedQueue<Future<?>>();
+		ExecutorService fetch_executor = getFetchExecutor();
+		try {
+			for (int i = 0; i < pending_packages.length; i++) {
+				final int pkg_id = i;
+				futures.add(fetch_executor.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						fetchPackage(pkg_id, remaining, futures);
+					}
+
+				}));
 			}
+			remaining.await();
+		} catch (InterruptedException e) {
+			// keep the journal so that the installation can resume, and leave the extracted files unrelocated
+			cancelAndWait(futures);
+			journal.close();
+			Thread.currentThread().interrupt();
+			setException(e);
+			return;
+		}
+		if (fatal_exception != null) {
+			journal.close();
+			setException(fatal_exception);
+			return;
 		}
 
 		// Post download and extract packages
 		try {
 			relocate(); // relocate the files to the TeX directory structures
+			for (int i = 0; i < pending_packages.length; i++) {
+				if (getPackageStatus(i) == PackageState.PACKAGE_SUCCESSFULLY_INSTALLED) {
+					journal.record(pending_packages[i], package_checksums[i], journal.get(pending_packages[i]).archive,
+							InstallJournal.Stage.RELOCATED);
+					getInstalledPackageRegistry().add(pending_packages[i]);
+				}
+			}
 			if (has_lualibs)
 				fixLualibsFile();
-			runFinalMakeLSR(); // and also regenerate ls-R files
+			// and also update ls-R files, regenerating them if the files of some package are unknown
+			if (has_unlisted_files)
+				runFinalMakeLSR();
+			else
+				runFinalMakeLSR(installed_files, null);
 		} catch (Exception e) {
+			journal.close();
 			setException(e);
 			return;
 		}
+		if (state == TaskState.COMPLETE)
+			journal.clear();
+		else
+			journal.close();
 	}
 
-	private void setPackageState(int package_id, PackageState package_state) {
+	private synchronized void setPackageState(int package_id, PackageState package_state) {
 		package_states[package_id] = package_state;
 		if (package_state == PackageState.PACKAGE_SUCCESSFULLY_INSTALLED)
 			num_success_packages++;
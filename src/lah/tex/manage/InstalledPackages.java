@@ -0,0 +1,195 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory registry of the packages installed in the TeX directory, i.e. those with a TeX Live package object file
+ * {@code tlpkg/tlpobj/[package].tlpobj}. The registry is loaded once from disk and then kept up to date by
+ * {@link InstallPackage} whenever a package is successfully installed; changes made by other programs can be picked up
+ * by {@link #startWatching()}.
+ *
+ * @author L.A.H.
+ *
+ */
+public class InstalledPackages {
+
+	private static final String TLPOBJ_EXTENSION = ".tlpobj";
+
+	private static String getPackageName(String tlpobj_file_name) {
+		return tlpobj_file_name.endsWith(TLPOBJ_EXTENSION) ? tlpobj_file_name.substring(0, tlpobj_file_name.length()
+				- TLPOBJ_EXTENSION.length()) : null;
+	}
+
+	private final Set<String> packages = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final File tlpobj_dir;
+
+	/**
+	 * Modification count of the registry, increased after each change of the set of installed packages
+	 */
+	private final AtomicInteger version = new AtomicInteger();
+
+	private Thread watch_thread;
+
+	private WatchService watch_service;
+
+	/**
+	 * Create the registry of a TeX directory
+	 *
+	 * @param texmf_root
+	 *            The TeX root directory
+	 */
+	public InstalledPackages(String texmf_root) {
+		tlpobj_dir = new File(texmf_root + "/tlpkg/tlpobj");
+		reload();
+	}
+
+	/**
+	 * Mark a package as installed
+	 *
+	 * @param package_name
+	 *            Name of the installed package
+	 */
+	public void add(String package_name) {
+		if (packages.add(package_name))
+			version.incrementAndGet();
+	}
+
+	public boolean contains(String package_name) {
+		return packages.contains(package_name);
+	}
+
+	/**
+	 * Get the installed packages
+	 *
+	 * @return Read-only live view of the set of names of installed packages
+	 */
+	public Set<String> getPackages() {
+		return Collections.unmodifiableSet(packages);
+	}
+
+	/**
+	 * Get a snapshot of the installed packages
+	 *
+	 * @return Sorted set of names of installed packages or {@code null} if the package object directory does not
+	 *         exist
+	 */
+	public Set<String> getSortedPackages() {
+		if (!tlpobj_dir.exists())
+			return null;
+		return new TreeSet<String>(packages);
+	}
+
+	/**
+	 * Get the modification count of the registry, so that results computed from the installed packages can be reused
+	 * until it changes
+	 *
+	 * @return Number of changes of the set of installed packages so far
+	 */
+	public int getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Reload the registry from the package object files on disk
+	 */
+	public void reload() {
+		Set<String> current = new TreeSet<String>();
+		File[] tlpobj_files = tlpobj_dir.listFiles();
+		if (tlpobj_files != null) {
+			for (File f : tlpobj_files) {
+				String pkg = getPackageName(f.getName());
+				if (pkg != null)
+					current.add(pkg);
+			}
+		}
+		boolean changed = packages.retainAll(current);
+		changed |= packages.addAll(current);
+		if (changed)
+			version.incrementAndGet();
+	}
+
+	/**
+	 * Start a background thread watching the package object directory for packages installed or removed by other
+	 * programs
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void startWatching() throws IOException {
+		if (watch_thread != null)
+			return;
+		tlpobj_dir.mkdirs();
+		final WatchService service = FileSystems.getDefault().newWatchService();
+		tlpobj_dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.OVERFLOW);
+		// reload in case some package is changed before the registration
+		reload();
+		watch_service = service;
+		watch_thread = new Thread("tlpobj-watcher") {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = service.take();
+						for (WatchEvent<?> event : key.pollEvents()) {
+							if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+								reload();
+								continue;
+							}
+							String pkg = getPackageName(((Path) event.context()).getFileName().toString());
+							if (pkg == null)
+								continue;
+							boolean changed;
+							if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE)
+								changed = packages.add(pkg);
+							else
+								changed = packages.remove(pkg);
+							if (changed)
+								version.incrementAndGet();
+						}
+						if (!key.reset())
+							break;
+					}
+				} catch (InterruptedException e) {
+					// stop watching
+				} catch (ClosedWatchServiceException e) {
+					// stop watching
+				}
+			}
+
+		};
+		watch_thread.setDaemon(true);
+		watch_thread.start();
+	}
+
+	/**
+	 * Stop watching the package object directory
+	 */
+	public synchronized void stopWatching() {
+		if (watch_thread == null)
+			return;
+		try {
+			watch_service.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		watch_thread.interrupt();
+		watch_thread = null;
+		watch_service = null;
+	}
+
+}
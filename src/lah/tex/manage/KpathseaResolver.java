@@ -0,0 +1,254 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import lah.spectre.stream.Streams;
+
+/**
+ * Resolver of TeX input files from the ls-R databases of the texmf directories, without running {@code kpsewhich}.
+ * The databases are loaded into a hash index from file names to the directories containing them, which is reloaded
+ * when some ls-R file changes.
+ *
+ * As with Kpathsea, a file name can contain directory components (e.g. {@code latex/base/article.cls}) which must
+ * match the tail of the directory, and a default suffix is tried first if the name does not have it. Only
+ * {@link #resolveInSearchPath(String)} restricts the lookup to the directories Kpathsea searches for the type of the
+ * file; the other methods find a file anywhere in the databases.
+ *
+ * @author L.A.H.
+ *
+ */
+public class KpathseaResolver {
+
+	/**
+	 * Immutable snapshot of the ls-R databases
+	 */
+	private static class Index {
+
+		/**
+		 * Absolute paths of all directories, without trailing "/"
+		 */
+		final String[] dirs;
+
+		/**
+		 * Map each file name to the ids of the directories containing it, in search order
+		 */
+		final Map<String, int[]> entries;
+
+		final long[] lsR_lengths, lsR_last_modified;
+
+		Index(String[] dirs, Map<String, int[]> entries, long[] lsR_lengths, long[] lsR_last_modified) {
+			this.dirs = dirs;
+			this.entries = entries;
+			this.lsR_lengths = lsR_lengths;
+			this.lsR_last_modified = lsR_last_modified;
+		}
+
+	}
+
+	/**
+	 * Directories (relative to the texmf directories) searched by Kpathsea for the main types of files, by suffix, as
+	 * set in the default texmf.cnf; other files are searched as TeX inputs
+	 */
+	private static final Map<String, String[]> search_paths = new HashMap<String, String[]>();
+
+	static {
+		search_paths.put("afm", new String[] { "fonts/afm" });
+		search_paths.put("bib", new String[] { "bibtex/bib" });
+		search_paths.put("bst", new String[] { "bibtex/bst" });
+		search_paths.put("enc", new String[] { "fonts/enc" });
+		search_paths.put("lua", new String[] { "tex", "scripts" });
+		search_paths.put("map", new String[] { "fonts/map" });
+		search_paths.put("mf", new String[] { "fonts/source", "metafont" });
+		search_paths.put("mp", new String[] { "metapost" });
+		search_paths.put("otf", new String[] { "fonts/opentype" });
+		search_paths.put("pfb", new String[] { "fonts/type1" });
+		search_paths.put("tex", new String[] { "tex" });
+		search_paths.put("tfm", new String[] { "fonts/tfm" });
+		search_paths.put("ttc", new String[] { "fonts/truetype" });
+		search_paths.put("ttf", new String[] { "fonts/truetype" });
+		search_paths.put("vf", new String[] { "fonts/vf" });
+	}
+
+	/**
+	 * The texmf directories in search order
+	 */
+	private static final String[] texmf_dirs = { "texmf-var", "texmf", "texmf-dist" };
+
+	private volatile Index index;
+
+	private final File[] lsR_files, texmf_dirs_files;
+
+	/**
+	 * Create a resolver for a TeX directory; the ls-R files are loaded on first use
+	 *
+	 * @param texmf_root
+	 *            The TeX root directory
+	 */
+	public KpathseaResolver(String texmf_root) {
+		texmf_dirs_files = new File[texmf_dirs.length];
+		lsR_files = new File[texmf_dirs.length];
+		for (int i = 0; i < texmf_dirs.length; i++) {
+			texmf_dirs_files[i] = new File(texmf_root, texmf_dirs[i]);
+			lsR_files[i] = new File(texmf_dirs_files[i], "ls-R");
+		}
+	}
+
+	/**
+	 * Get the index, reloading it if some ls-R file is changed
+	 */
+	private Index getIndex() throws IOException {
+		Index current = index;
+		if (current != null && !isModified(current))
+			return current;
+		synchronized (this) {
+			current = index;
+			if (current == null || isModified(current))
+				index = current = load();
+			return current;
+		}
+	}
+
+	private boolean isModified(Index current) {
+		for (int i = 0; i < lsR_files.length; i++) {
+			if (lsR_files[i].length() != current.lsR_lengths[i]
+					|| lsR_files[i].lastModified() != current.lsR_last_modified[i])
+				return true;
+		}
+		return false;
+	}
+
+	private Index load() throws IOException {
+		List<String> dirs = new ArrayList<String>();
+		Map<String, int[]> entries = new HashMap<String, int[]>();
+		long[] lengths = new long[lsR_files.length], last_modified = new long[lsR_files.length];
+		for (int i = 0; i < lsR_files.length; i++) {
+			lengths[i] = lsR_files[i].length();
+			last_modified[i] = lsR_files[i].lastModified();
+			if (!lsR_files[i].exists())
+				continue;
+			String content = Streams.readTextFile(lsR_files[i]);
+			String texmf_dir = texmf_dirs_files[i].getAbsolutePath();
+			int current_dir = -1;
+			int start = 0;
+			while (start < content.length()) {
+				int end = content.indexOf('\n', start);
+				if (end < 0)
+					end = content.length();
+				if (end > start && content.charAt(start) != '%') {
+					String line = content.substring(start, end);
+					if (line.endsWith(":")) {
+						String dir = line.substring(0, line.length() - 1);
+						// relative directories start with "./" or are "." itself
+						if (dir.startsWith("."))
+							dir = texmf_dir + dir.substring(1);
+						current_dir = dirs.size();
+						dirs.add(dir);
+					} else if (current_dir >= 0) {
+						int[] ids = entries.get(line);
+						if (ids == null)
+							ids = new int[] { current_dir };
+						else {
+							ids = Arrays.copyOf(ids, ids.length + 1);
+							ids[ids.length - 1] = current_dir;
+						}
+						entries.put(line, ids);
+					}
+				}
+				start = end + 1;
+			}
+		}
+		return new Index(dirs.toArray(new String[dirs.size()]), entries, lengths, last_modified);
+	}
+
+	/**
+	 * Find a file
+	 *
+	 * @param name
+	 *            Name of the file, possibly with leading directory components
+	 * @return Absolute path of the first matching file in the databases or {@code null} if there is none
+	 * @throws IOException
+	 */
+	public String resolve(String name) throws IOException {
+		return resolve(getIndex(), name, null);
+	}
+
+	/**
+	 * @param dir_prefixes
+	 *            Absolute paths (ending with "/") of the directories to search with their sub-directories, {@code null}
+	 *            to search all directories
+	 */
+	private String resolve(Index current, String name, String[] dir_prefixes) {
+		int slash = name.lastIndexOf('/');
+		String file_name = name.substring(slash + 1);
+		String dir_suffix = (slash < 0 ? null : "/" + name.substring(0, slash));
+		int[] ids = current.entries.get(file_name);
+		if (ids == null)
+			return null;
+		for (int id : ids) {
+			String dir = current.dirs[id];
+			if ((dir_suffix == null || dir.endsWith(dir_suffix)) && isInDirectories(dir, dir_prefixes))
+				return dir + "/" + file_name;
+		}
+		return null;
+	}
+
+	private static boolean isInDirectories(String dir, String[] dir_prefixes) {
+		if (dir_prefixes == null)
+			return true;
+		for (String prefix : dir_prefixes) {
+			if ((dir + "/").startsWith(prefix))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find a file, trying with a default suffix first if the name does not end with it
+	 *
+	 * @param name
+	 *            Name of the file, possibly with leading directory components
+	 * @param suffix
+	 *            Default suffix, without leading ".", e.g. {@code tex}
+	 * @return Absolute path of the first matching file in the databases or {@code null} if there is none
+	 * @throws IOException
+	 */
+	public String resolve(String name, String suffix) throws IOException {
+		Index current = getIndex();
+		if (suffix != null && !name.endsWith("." + suffix)) {
+			String result = resolve(current, name + "." + suffix, null);
+			if (result != null)
+				return result;
+		}
+		return resolve(current, name, null);
+	}
+
+	/**
+	 * Find a file in the directories Kpathsea searches for its type (e.g. {@code fonts/tfm//} for a {@code .tfm} file
+	 * and {@code tex//} for a LaTeX package), so that a file of the same name elsewhere (e.g. under {@code doc} or
+	 * {@code source}) is not taken for it
+	 *
+	 * @param name
+	 *            Name of the file, possibly with leading directory components
+	 * @return Absolute path of the first matching file in the search path or {@code null} if there is none
+	 * @throws IOException
+	 */
+	public String resolveInSearchPath(String name) throws IOException {
+		int dot = name.lastIndexOf('.');
+		String[] subdirs = (dot < 0 ? null : search_paths.get(name.substring(dot + 1)));
+		if (subdirs == null)
+			subdirs = search_paths.get("tex");
+		String[] dir_prefixes = new String[texmf_dirs_files.length * subdirs.length];
+		for (int i = 0; i < texmf_dirs_files.length; i++) {
+			for (int j = 0; j < subdirs.length; j++)
+				dir_prefixes[i * subdirs.length + j] = texmf_dirs_files[i].getAbsolutePath() + "/" + subdirs[j] + "/";
+		}
+		return resolve(getIndex(), name, dir_prefixes);
+	}
+
+}
@@ -0,0 +1,306 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import lah.spectre.stream.Streams;
+
+/**
+ * In-memory model of a Kpathsea ls-R file i.e. the output of {@code ls -R .} in a texmf directory: a sequence of
+ * blocks, each consisting of a line {@code [directory]:} followed by the names of the entries of the directory.
+ *
+ * Changes are applied to the model and then committed to the file: added entries are appended as new blocks (Kpathsea
+ * merges blocks of the same directory) while removals cause the file to be rewritten.
+ *
+ * @author L.A.H.
+ *
+ */
+public class LsRDatabase {
+
+	/**
+	 * Magic header of ls-R files
+	 */
+	static final String lsR_magic = "% ls-R -- filename database for kpathsea; do not change this line.\n";
+
+	/**
+	 * Path of the root directory in the database
+	 */
+	static final String ROOT = ".";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Load the model of an existing ls-R file
+	 *
+	 * @param lsR_file
+	 *            The ls-R file
+	 * @return The model of the file
+	 * @throws IOException
+	 */
+	public static LsRDatabase load(File lsR_file) throws IOException {
+		LsRDatabase db = new LsRDatabase(lsR_file);
+		long length = lsR_file.length(), last_modified = lsR_file.lastModified();
+		String content = Streams.readTextFile(lsR_file);
+		TreeSet<String> current_dir = null;
+		int start = 0;
+		while (start < content.length()) {
+			int end = content.indexOf('\n', start);
+			if (end < 0)
+				end = content.length();
+			if (end > start && content.charAt(start) != '%') {
+				String line = content.substring(start, end);
+				if (line.endsWith(":"))
+					current_dir = db.getOrCreateDirectory(line.substring(0, line.length() - 1));
+				else if (current_dir != null)
+					current_dir.add(line);
+			}
+			start = end + 1;
+		}
+		db.file_length = length;
+		db.file_last_modified = last_modified;
+		return db;
+	}
+
+	/**
+	 * Entries of each directory, keyed by the directory path
+	 */
+	private final TreeMap<String, TreeSet<String>> directories = new TreeMap<String, TreeSet<String>>();
+
+	private long file_length = -1, file_last_modified = -1;
+
+	private final File lsR_file;
+
+	/**
+	 * Entries added since the last commit, to be appended to the file
+	 */
+	private final Map<String, List<String>> pending_additions = new LinkedHashMap<String, List<String>>();
+
+	private boolean pending_removals;
+
+	/**
+	 * Create an empty model
+	 *
+	 * @param lsR_file
+	 *            The ls-R file to commit to
+	 */
+	public LsRDatabase(File lsR_file) {
+		this.lsR_file = lsR_file;
+	}
+
+	/**
+	 * Add a file (and its parent directories, if necessary)
+	 *
+	 * @param path
+	 *            Path of the file relative to the texmf directory, e.g. {@code fonts/pk/ljfour/cmr10.600pk}
+	 * @return {@code true} if the database changes
+	 */
+	public boolean add(String path) {
+		boolean changed = false;
+		String dir = ROOT;
+		int start = 0;
+		while (start < path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0)
+				end = path.length();
+			String name = path.substring(start, end);
+			if (!name.isEmpty() && !name.equals(".")) {
+				if (getOrCreateDirectory(dir).add(name)) {
+					List<String> added = pending_additions.get(dir);
+					if (added == null)
+						pending_additions.put(dir, added = new ArrayList<String>());
+					added.add(name);
+					changed = true;
+				}
+				dir = dir + "/" + name;
+			}
+			start = end + 1;
+		}
+		return changed;
+	}
+
+	/**
+	 * Add the entries of a directory, used when building the database from a directory walk
+	 *
+	 * @param dir
+	 *            Path of the directory, starting with "."
+	 * @param names
+	 *            Names of the entries in the directory
+	 */
+	void addDirectory(String dir, String[] names) {
+		Collections.addAll(getOrCreateDirectory(dir), names);
+		pending_removals = true;
+	}
+
+	/**
+	 * Write the pending changes to the ls-R file: append the added entries if there is no removal and the file is not
+	 * modified since it is last read or written; otherwise rewrite the file
+	 *
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		if (pending_removals || isModified()) {
+			write();
+			return;
+		}
+		if (pending_additions.isEmpty())
+			return;
+		StringBuilder blocks = new StringBuilder();
+		for (Map.Entry<String, List<String>> entry : pending_additions.entrySet()) {
+			blocks.append('\n').append(entry.getKey()).append(":\n");
+			for (String name : entry.getValue())
+				blocks.append(name).append('\n');
+		}
+		FileChannel out = FileChannel.open(lsR_file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		try {
+			ByteBuffer data = ByteBuffer.wrap(blocks.toString().getBytes(UTF8));
+			while (data.hasRemaining())
+				out.write(data);
+		} finally {
+			out.close();
+		}
+		file_length = lsR_file.length();
+		file_last_modified = lsR_file.lastModified();
+		pending_additions.clear();
+	}
+
+	/**
+	 * Get the entries of a directory
+	 *
+	 * @param dir
+	 *            Path of the directory, starting with "."
+	 * @return Sorted names of the entries or {@code null} if the directory is not in the database
+	 */
+	public TreeSet<String> getDirectory(String dir) {
+		return directories.get(dir);
+	}
+
+	/**
+	 * Get all directories
+	 *
+	 * @return Map from the path of each directory (starting with ".") to its sorted entries
+	 */
+	public SortedMap<String, TreeSet<String>> getDirectories() {
+		return Collections.unmodifiableSortedMap(directories);
+	}
+
+	public File getFile() {
+		return lsR_file;
+	}
+
+	private TreeSet<String> getOrCreateDirectory(String dir) {
+		TreeSet<String> names = directories.get(dir);
+		if (names == null)
+			directories.put(dir, names = new TreeSet<String>());
+		return names;
+	}
+
+	/**
+	 * Test whether the ls-R file is changed (or removed) by someone else since it is last read or written
+	 */
+	public boolean isModified() {
+		return lsR_file.length() != file_length || lsR_file.lastModified() != file_last_modified;
+	}
+
+	/**
+	 * Remove a file or a directory with all its content
+	 *
+	 * @param path
+	 *            Path of the file or directory relative to the texmf directory
+	 * @return {@code true} if the database changes
+	 */
+	public boolean remove(String path) {
+		while (path.endsWith("/"))
+			path = path.substring(0, path.length() - 1);
+		int slash = path.lastIndexOf('/');
+		String parent = (slash < 0 ? ROOT : ROOT + "/" + path.substring(0, slash));
+		String dir = ROOT + "/" + path;
+		TreeSet<String> parent_names = directories.get(parent);
+		boolean changed = (parent_names != null && parent_names.remove(path.substring(slash + 1)));
+		SortedMap<String, TreeSet<String>> subtree = directories.subMap(dir + "/", dir + "/\uffff");
+		if (directories.remove(dir) != null || !subtree.isEmpty()) {
+			subtree.clear();
+			changed = true;
+		}
+		if (changed)
+			pending_removals = true;
+		return changed;
+	}
+
+	/**
+	 * Rewrite the whole ls-R file: write to a temporary file in the same directory and move it to the intended
+	 * location atomically
+	 *
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		File temp_lsRfile = File.createTempFile("." + lsR_file.getName(), ".tmp", lsR_file.getParentFile());
+		try {
+			FileChannel out = new FileOutputStream(temp_lsRfile).getChannel();
+			try {
+				ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+				buffer.put(lsR_magic.getBytes(UTF8));
+				writeDirectory(ROOT, out, buffer);
+				flush(out, buffer);
+			} finally {
+				out.close();
+			}
+			Files.move(temp_lsRfile.toPath(), lsR_file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp_lsRfile.delete();
+		}
+		file_length = lsR_file.length();
+		file_last_modified = lsR_file.lastModified();
+		pending_additions.clear();
+		pending_removals = false;
+	}
+
+	/**
+	 * Write the block of a directory followed by those of its sub-directories, in the order of {@code ls -R}
+	 */
+	private void writeDirectory(String dir, FileChannel out, ByteBuffer buffer) throws IOException {
+		TreeSet<String> names = directories.get(dir);
+		if (names == null)
+			return;
+		StringBuilder content = new StringBuilder();
+		if (!dir.equals(ROOT))
+			content.append('\n');
+		content.append(dir).append(":\n");
+		for (String name : names)
+			content.append(name).append('\n');
+		byte[] block = content.toString().getBytes(UTF8);
+		if (block.length > buffer.remaining())
+			flush(out, buffer);
+		if (block.length > buffer.capacity()) {
+			ByteBuffer data = ByteBuffer.wrap(block);
+			while (data.hasRemaining())
+				out.write(data);
+		} else
+			buffer.put(block);
+		for (String name : names)
+			writeDirectory(dir + "/" + name, out, buffer);
+	}
+
+}
@@ -0,0 +1,298 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background maintainer of the ls-R files which watches the texmf directories for files added or removed by other
+ * programs and applies the changes incrementally via {@link MakeLSR#requestRefresh(java.util.Collection,
+ * java.util.Collection)}. Bursts of events are debounced: the changes are applied once no event arrives for a while
+ * (or the oldest change is too old).
+ *
+ * @author L.A.H.
+ *
+ */
+public class LsRWatcher {
+
+	/**
+	 * The watched directories under the TeX root
+	 */
+	private static final String[] texmf_dirs = { "texmf", "texmf-dist", "texmf-var" };
+
+	private final Set<String> added_files = new LinkedHashSet<String>(), removed_files = new LinkedHashSet<String>();
+
+	/**
+	 * Time to wait for further events before applying the changes and maximum time to delay a change, in milliseconds
+	 */
+	private final long debounce_delay, max_delay;
+
+	/**
+	 * Time (from {@link System#nanoTime()}) of the first event not yet applied
+	 */
+	private long first_event_time;
+
+	private boolean has_overflow;
+
+	private final MakeLSR make_lsr;
+
+	private final AtomicLong num_updates = new AtomicLong(), last_lag = new AtomicLong(), max_lag = new AtomicLong(),
+			total_lag = new AtomicLong();
+
+	/**
+	 * The directory of the temporary files of the programs, which is not watched
+	 */
+	private final Path temporary_dir;
+
+	private final String texmf_root;
+
+	private Thread watch_thread;
+
+	private WatchService watch_service;
+
+	/**
+	 * Create a watcher
+	 *
+	 * @param make_lsr
+	 *            The task maintaining the ls-R files
+	 * @param texmf_root
+	 *            The TeX root directory
+	 * @param debounce_delay
+	 *            Time (in milliseconds) without event to wait for before applying the changes
+	 * @param max_delay
+	 *            Maximum time (in milliseconds) to delay a change during a continuous burst of events
+	 */
+	public LsRWatcher(MakeLSR make_lsr, String texmf_root, long debounce_delay, long max_delay) {
+		this.make_lsr = make_lsr;
+		this.texmf_root = texmf_root;
+		this.temporary_dir = new File(texmf_root, MakeLSR.TEMPORARY_DIRECTORY).toPath();
+		this.debounce_delay = debounce_delay;
+		this.max_delay = max_delay;
+	}
+
+	/**
+	 * Apply the collected changes and update the lag statistics
+	 */
+	private void applyChanges() throws InterruptedException {
+		try {
+			if (has_overflow)
+				make_lsr.requestRefresh().get();
+			else
+				make_lsr.requestRefresh(added_files, removed_files).get();
+		} catch (ExecutionException e) {
+			// the next change or task retries the update
+		}
+		long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - first_event_time);
+		num_updates.incrementAndGet();
+		last_lag.set(lag);
+		total_lag.addAndGet(lag);
+		long max;
+		while (lag > (max = max_lag.get()) && !max_lag.compareAndSet(max, lag))
+			;
+		added_files.clear();
+		removed_files.clear();
+		has_overflow = false;
+		first_event_time = 0;
+	}
+
+	/**
+	 * Get the average time (in milliseconds) between a change in the texmf directories and the update of the ls-R
+	 * files
+	 */
+	public long getAverageLag() {
+		long n = num_updates.get();
+		return n == 0 ? 0 : total_lag.get() / n;
+	}
+
+	/**
+	 * Get the time (in milliseconds) between the first change applied by the last update and that update
+	 */
+	public long getLastLag() {
+		return last_lag.get();
+	}
+
+	public long getMaxLag() {
+		return max_lag.get();
+	}
+
+	public long getNumberOfUpdates() {
+		return num_updates.get();
+	}
+
+	/**
+	 * Record the time of the first change not yet applied
+	 */
+	private void markChanged() {
+		if (first_event_time == 0)
+			first_event_time = System.nanoTime();
+	}
+
+	/**
+	 * Process the events of a watch key
+	 */
+	private void processEvents(WatchKey key) {
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				has_overflow = true;
+				markChanged();
+				continue;
+			}
+			String name = ((Path) event.context()).toString();
+			// ignore hidden files (including the temporary files of MakeLSR) and the ls-R files themselves so that
+			// updating the ls-R files does not trigger another update
+			if (name.startsWith(".") || name.equals("ls-R"))
+				continue;
+			markChanged();
+			Path path = dir.resolve(name);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+				if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						register(path, true);
+					} catch (IOException e) {
+						// some files of the new directory may be missed, regenerate the ls-R files instead
+						has_overflow = true;
+					}
+				} else {
+					removed_files.remove(path.toString());
+					added_files.add(path.toString());
+				}
+			} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+				added_files.remove(path.toString());
+				removed_files.add(path.toString());
+			}
+		}
+		key.reset();
+	}
+
+	/**
+	 * Watch a directory and all its sub-directories
+	 *
+	 * @param dir
+	 *            The directory
+	 * @param is_new
+	 *            Whether the directory is just created, in which case its files are added as well
+	 */
+	private void register(Path dir, final boolean is_new) throws IOException {
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				if (d.getFileName().toString().startsWith(".") || d.equals(temporary_dir))
+					return FileVisitResult.SKIP_SUBTREE;
+				d.register(watch_service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.OVERFLOW);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+				String name = f.getFileName().toString();
+				if (is_new && !name.startsWith(".") && !name.equals("ls-R"))
+					added_files.add(f.toString());
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path f, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+	}
+
+	/**
+	 * Start watching the texmf directories in a background thread
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void start() throws IOException {
+		if (watch_thread != null)
+			return;
+		watch_service = FileSystems.getDefault().newWatchService();
+		try {
+			for (String d : texmf_dirs) {
+				File texmf_dir = new File(texmf_root, d);
+				if (texmf_dir.isDirectory())
+					register(texmf_dir.toPath(), false);
+			}
+		} catch (IOException e) {
+			// e.g. the limit of watches is reached, drop the partially registered service
+			try {
+				watch_service.close();
+			} catch (IOException close_exception) {
+				// ignore
+			}
+			watch_service = null;
+			throw e;
+		}
+		final WatchService service = watch_service;
+		watch_thread = new Thread("ls-R-watcher") {
+
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key;
+						if (first_event_time == 0)
+							key = service.take();
+						else {
+							long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - first_event_time);
+							key = service.poll(Math.max(0, Math.min(debounce_delay, max_delay - age)),
+									TimeUnit.MILLISECONDS);
+						}
+						if (key == null)
+							applyChanges();
+						else {
+							processEvents(key);
+							// a continuous burst of events never times out the poll
+							if (first_event_time != 0
+									&& TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - first_event_time) >= max_delay)
+								applyChanges();
+						}
+					}
+				} catch (InterruptedException e) {
+					// stop watching
+				} catch (ClosedWatchServiceException e) {
+					// stop watching
+				}
+			}
+
+		};
+		watch_thread.setDaemon(true);
+		watch_thread.start();
+	}
+
+	/**
+	 * Stop watching the texmf directories
+	 */
+	public synchronized void stop() {
+		if (watch_thread == null)
+			return;
+		try {
+			watch_service.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		watch_thread.interrupt();
+		watch_thread = null;
+		watch_service = null;
+	}
+
+}
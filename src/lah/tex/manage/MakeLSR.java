@@ -1,11 +1,23 @@
 package lah.tex.manage;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lah.spectre.multitask.TaskState;
-import lah.spectre.stream.StreamRedirector;
-import lah.spectre.stream.Streams;
 import lah.tex.Task;
 
 /**
@@ -17,22 +29,176 @@ import lah.tex.Task;
 public class MakeLSR extends Task {
 
 	/**
-	 * Magic header of ls-R files
+	 * Task to list a directory and (in parallel) its sub-directories, as {@code ls -R .} does
 	 */
-	private static final String lsR_magic = "% ls-R -- filename database for kpathsea; do not change this line.\n";
+	private static class ListDirectory extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private ListDirectory[] children;
+
+		private final File dir;
+
+		private String[] names;
+
+		/**
+		 * Path of the directory relative to the texmf directory, starting with "."
+		 */
+		private final String path;
+
+		ListDirectory(File dir, String path) {
+			this.dir = dir;
+			this.path = path;
+		}
+
+		/**
+		 * Add the entries of this directory and its sub-directories to a database
+		 */
+		void addTo(LsRDatabase db) {
+			db.addDirectory(path, names);
+			for (ListDirectory child : children)
+				child.addTo(db);
+		}
+
+		@Override
+		protected void compute() {
+			String[] all_names = dir.list();
+			if (all_names == null)
+				all_names = new String[0];
+			List<String> listed_names = new ArrayList<String>(all_names.length);
+			List<ListDirectory> subdirs = new ArrayList<ListDirectory>();
+			for (String name : all_names) {
+				// hidden files are not listed by ls, neither is the ls-R file being replaced nor the temporary files
+				if (name.startsWith(".") || (path.equals(LsRDatabase.ROOT)
+						&& (name.equals(LSR) || isTemporaryDirectory(new File(dir, name)))))
+					continue;
+				listed_names.add(name);
+				File f = new File(dir, name);
+				if (f.isDirectory() && !Files.isSymbolicLink(f.toPath()))
+					subdirs.add(new ListDirectory(f, path + "/" + name));
+			}
+			names = listed_names.toArray(new String[listed_names.size()]);
+			children = subdirs.toArray(new ListDirectory[subdirs.size()]);
+			invokeAll(children);
+		}
+
+	}
+
+	/**
+	 * A refresh of the ls-R files serving one or more requests
+	 */
+	private class Refresh implements Callable<Void> {
+
+		private final Set<String> added_files = new LinkedHashSet<String>(), removed_files = new LinkedHashSet<String>();
+
+		final FutureTask<Void> future = new FutureTask<Void>(this);
+
+		private boolean regenerate_all;
+
+		@Override
+		public Void call() throws Exception {
+			if (regenerate_all) {
+				List<Integer> trees = new ArrayList<Integer>();
+				for (int i = 0; i < texmf_dirs_files.length; i++)
+					trees.add(i);
+				regenerate(trees);
+			} else
+				update(added_files, removed_files);
+			return null;
+		}
+
+		/**
+		 * Merge a request into this refresh, the later change of a file overriding the earlier one
+		 */
+		void merge(Collection<String> added, Collection<String> removed, boolean regenerate) {
+			regenerate_all |= regenerate;
+			if (regenerate_all) {
+				added_files.clear();
+				removed_files.clear();
+				return;
+			}
+			if (removed != null) {
+				added_files.removeAll(removed);
+				removed_files.addAll(removed);
+			}
+			if (added != null) {
+				removed_files.removeAll(added);
+				added_files.addAll(added);
+			}
+		}
+
+	}
+
+	/**
+	 * Name of the ls-R file
+	 */
+	private static final String LSR = "ls-R";
+
+	private static ForkJoinPool pool;
 
 	/**
 	 * The directories under tex_root to generate ls-R are
 	 */
 	private static final String[] texmf_dirs = { "texmf", "texmf-dist", "texmf-var" };
 
+	/**
+	 * Directory (relative to the TeX root) of the temporary files of the programs, e.g. the scratch directories of
+	 * concurrent tasks; it is not listed in the ls-R files as its files come and go with the programs
+	 */
+	static final String TEMPORARY_DIRECTORY = "texmf-var/tmp";
+
+	private static synchronized ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool();
+		return pool;
+	}
+
+	static boolean isTemporaryDirectory(File dir) {
+		return dir.getAbsoluteFile().equals(
+				new File(environment.getTeXMFRootDirectory(), TEMPORARY_DIRECTORY).getAbsoluteFile());
+	}
+
+	/**
+	 * Models of the ls-R files of the texmf directories, loaded or generated on demand; only accessed by the thread
+	 * running the refreshes
+	 */
+	private LsRDatabase[] databases;
+
+	/**
+	 * Whether some thread is running the refreshes
+	 */
+	private boolean is_refreshing;
+
+	private final AtomicLong num_refreshes = new AtomicLong(), num_requests = new AtomicLong();
+
+	/**
+	 * Refresh to run after the one in progress, collecting the requests made in the meantime
+	 */
+	private Refresh pending_refresh;
+
+	private final Object refresh_lock = new Object();
+
+	/**
+	 * Absolute path of {@link #TEMPORARY_DIRECTORY}, ending with "/"
+	 */
+	private final String temporary_dir_path;
+
 	private File[] texmf_dirs_files;
 
+	/**
+	 * Absolute paths of the texmf directories, ending with "/"
+	 */
+	private String[] texmf_dirs_paths;
+
 	public MakeLSR() {
 		texmf_dirs_files = new File[texmf_dirs.length];
+		texmf_dirs_paths = new String[texmf_dirs.length];
+		databases = new LsRDatabase[texmf_dirs.length];
 		for (int i = 0; i < texmf_dirs.length; i++) {
 			texmf_dirs_files[i] = new File(environment.getTeXMFRootDirectory(), texmf_dirs[i] + "/");
+			texmf_dirs_paths[i] = texmf_dirs_files[i].getAbsolutePath() + "/";
 		}
+		temporary_dir_path = new File(environment.getTeXMFRootDirectory(), TEMPORARY_DIRECTORY).getAbsolutePath() + "/";
 	}
 
 	@Override
@@ -40,44 +206,201 @@ public class MakeLSR extends Task {
 		return "Generate ls-R path databases";
 	}
 
-	@Override
-	public void run() {
-		reset();
-		setState(TaskState.EXECUTING);
-		for (int i = 0; i < texmf_dirs_files.length; i++) {
-			// System.out.println("Make lsr in directory " + texmf_dirs[i]);
+	/**
+	 * Run the pending refreshes until there is none left
+	 */
+	private void drain() {
+		while (true) {
+			Refresh refresh;
+			synchronized (refresh_lock) {
+				refresh = pending_refresh;
+				pending_refresh = null;
+				if (refresh == null) {
+					is_refreshing = false;
+					return;
+				}
+			}
+			num_refreshes.incrementAndGet();
+			refresh.future.run();
+		}
+	}
+
+	/**
+	 * Get the model of the ls-R file of a texmf directory, loading it from the file if necessary
+	 * 
+	 * @param i
+	 *            Index of the texmf directory
+	 * @return The model or {@code null} if the ls-R file does not exist
+	 * @throws IOException
+	 */
+	private LsRDatabase getDatabase(int i) throws IOException {
+		if (databases[i] == null || databases[i].isModified()) {
+			File lsRfile = new File(texmf_dirs_files[i], LSR);
+			databases[i] = (lsRfile.exists() ? LsRDatabase.load(lsRfile) : null);
+		}
+		return databases[i];
+	}
+
+	/**
+	 * Get the number of refreshes actually run, which is at most {@link #getNumberOfRequests()} as concurrent requests
+	 * are coalesced
+	 */
+	public long getNumberOfRefreshes() {
+		return num_refreshes.get();
+	}
+
+	/**
+	 * Get the number of refreshes requested
+	 */
+	public long getNumberOfRequests() {
+		return num_requests.get();
+	}
+
+	/**
+	 * Find the texmf directory containing a file
+	 * 
+	 * @param path
+	 *            Absolute path of the file
+	 * @return Index of the texmf directory or -1 if the file is not in any
+	 */
+	private int getTeXMFDirectory(String path) {
+		for (int i = 0; i < texmf_dirs_paths.length; i++) {
+			if (path.startsWith(texmf_dirs_paths[i]))
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Regenerate the ls-R files of some texmf directories, listing the directories in parallel
+	 * 
+	 * @param trees
+	 *            Indices of the texmf directories
+	 * @throws Exception
+	 */
+	private void regenerate(List<Integer> trees) throws Exception {
+		ForkJoinTask<?>[] listings = new ForkJoinTask<?>[texmf_dirs_files.length];
+		ListDirectory[] roots = new ListDirectory[texmf_dirs_files.length];
+		for (int i : trees) {
 			File texmf_dir = texmf_dirs_files[i];
 			// Skip non-existing texmf directory, is not a directory or
 			// cannot read/write/execute: skip it
 			if (!texmf_dir.exists() || (!(texmf_dir.isDirectory() && texmf_dir.canRead() && texmf_dir.canWrite())))
 				// && texmf_dir.canExecute()
 				continue;
-
-			// Delete the ls-R before doing path generation
-			File lsRfile = new File(texmf_dirs_files[i], "ls-R");
-			if (lsRfile.exists() && lsRfile.isFile()) {
-				// System.out.println("Delete " + lsRfile.getAbsolutePath());
-				lsRfile.delete();
-			}
-
-			// Create a temporary ls-R file
-			File temp_lsRfile = new File(environment.getTeXMFRootDirectory(), "ls-R");
+			roots[i] = new ListDirectory(texmf_dir, LsRDatabase.ROOT);
+			listings[i] = getPool().submit(roots[i]);
+		}
+		for (int i : trees) {
+			if (roots[i] == null)
+				continue;
 			try {
-				Streams.writeStringToFile(lsR_magic, temp_lsRfile, false);
-				// Now do the "ls -R . >> ls-R" in the texmf root directory
-				final FileOutputStream lsR_stream = new FileOutputStream(temp_lsRfile, true);
-				shell.fork(new String[] { environment.getBusyBox(), "ls", "-R", "." }, texmf_dir, new StreamRedirector(
-						lsR_stream), 600000);
-				lsR_stream.close();
-			} catch (Exception e) {
-				temp_lsRfile.delete();
-				setException(e);
-				return;
+				listings[i].get();
+			} catch (ExecutionException e) {
+				throw (e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
 			}
+			LsRDatabase db = new LsRDatabase(new File(texmf_dirs_files[i], LSR));
+			roots[i].addTo(db);
+			db.write();
+			databases[i] = db;
+		}
+	}
+
+	/**
+	 * Request the regeneration of all ls-R files. Concurrent requests are coalesced: the request is merged into the
+	 * pending refresh, if any, which is run once the refresh in progress (if any) finishes.
+	 * 
+	 * @return Future of the refresh serving the request, shared with the requests merged into it
+	 */
+	public Future<Void> requestRefresh() {
+		return requestRefresh(null, null, true);
+	}
+
+	/**
+	 * Request an update of the ls-R files with the changes made by a task; the ls-R files of texmf directories which do
+	 * not have one yet are regenerated. Concurrent requests are coalesced as in {@link #requestRefresh()}.
+	 * 
+	 * @param added_files
+	 *            Absolute paths of the added files, can be {@code null}
+	 * @param removed_files
+	 *            Absolute paths of the removed files and directories, can be {@code null}
+	 * @return Future of the refresh serving the request, shared with the requests merged into it
+	 */
+	public Future<Void> requestRefresh(Collection<String> added_files, Collection<String> removed_files) {
+		return requestRefresh(added_files, removed_files, false);
+	}
 
-			// Move the temporary file to the intended location
-			temp_lsRfile.renameTo(lsRfile);
+	private Future<Void> requestRefresh(Collection<String> added_files, Collection<String> removed_files,
+			boolean regenerate_all) {
+		num_requests.incrementAndGet();
+		Refresh refresh;
+		boolean run_here;
+		synchronized (refresh_lock) {
+			if (pending_refresh == null)
+				pending_refresh = new Refresh();
+			refresh = pending_refresh;
+			refresh.merge(added_files, removed_files, regenerate_all);
+			// the first requester while no refresh is in progress runs the refreshes
+			run_here = !is_refreshing;
+			is_refreshing = true;
+		}
+		if (run_here)
+			drain();
+		return refresh.future;
+	}
+
+	@Override
+	public void run() {
+		reset();
+		setState(TaskState.EXECUTING);
+		try {
+			requestRefresh().get();
+		} catch (ExecutionException e) {
+			setException(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+			return;
+		} catch (InterruptedException e) {
+			setException(e);
+			return;
 		}
 		setState(TaskState.COMPLETE);
 	}
+
+	/**
+	 * Update the ls-R files with the changes made by some tasks
+	 * 
+	 * @param added_files
+	 *            Absolute paths of the added files
+	 * @param removed_files
+	 *            Absolute paths of the removed files and directories
+	 * @throws Exception
+	 */
+	private void update(Collection<String> added_files, Collection<String> removed_files) throws Exception {
+		boolean[] changed = new boolean[texmf_dirs_files.length];
+		boolean[] regenerate = new boolean[texmf_dirs_files.length];
+		LsRDatabase[] dbs = new LsRDatabase[texmf_dirs_files.length];
+		for (int pass = 0; pass < 2; pass++) {
+			for (String f : (pass == 0 ? removed_files : added_files)) {
+				int i = getTeXMFDirectory(f);
+				if (i < 0 || regenerate[i] || (f + "/").startsWith(temporary_dir_path))
+					continue;
+				LsRDatabase db = (dbs[i] != null ? dbs[i] : (dbs[i] = getDatabase(i)));
+				if (db == null) {
+					regenerate[i] = true;
+					continue;
+				}
+				String path = f.substring(texmf_dirs_paths[i].length());
+				if (pass == 0 ? db.remove(path) : db.add(path))
+					changed[i] = true;
+			}
+		}
+		List<Integer> trees = new ArrayList<Integer>();
+		for (int i = 0; i < texmf_dirs_files.length; i++) {
+			if (regenerate[i])
+				trees.add(i);
+			else if (changed[i])
+				databases[i].commit();
+		}
+		if (!trees.isEmpty())
+			regenerate(trees);
+	}
 }
@@ -1,6 +1,9 @@
 package lah.tex.manage;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
@@ -78,8 +81,12 @@ public class MakeLanguageConfigurations extends Task {
 		// Regenerate path databases and remove existing format files (if any) so that they will be properly regenerated
 		// in subsequent compilation with consideration for newly enabled/disabled languages
 		try {
-			shell.fork(new String[] { "rm", "-r", environment.getTeXMFRootDirectory() + "/texmf-var/web2c" }, null);
-			runFinalMakeLSR();
+			File web2c_dir = new File(environment.getTeXMFRootDirectory() + "/texmf-var/web2c");
+			shell.fork(new String[] { "rm", "-r", web2c_dir.getPath() }, null);
+			List<String> config_files = new ArrayList<String>();
+			for (String lf : lang_config_files)
+				config_files.add(new File(lang_config_loc, lf).getAbsolutePath());
+			runFinalMakeLSR(config_files, Collections.singletonList(web2c_dir.getAbsolutePath()));
 		} catch (Exception e) {
 			setException(e);
 			return;
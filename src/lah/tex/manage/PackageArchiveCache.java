@@ -0,0 +1,343 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.spectre.stream.Streams;
+
+/**
+ * Local content-addressed cache of package archives. Each archive is stored once under the name
+ * {@code [SHA-1].tar.xz}; the index file maps a package name and revision to the checksum of its archive, with lines
+ * of format {@code [package] [revision] [checksum]}.
+ *
+ * The total size of the archives is bounded: the least recently used archives (i.e. those with the oldest modification
+ * time, which is updated on each hit) are evicted first, except the archives in use: an archive returned by
+ * {@link #get(String, String)} or {@link #put(String, String, File, String)} is pinned until it is released with
+ * {@link #release(File)}. Pins are only held in memory, so the cache directory must not be used by several processes
+ * at the same time: the eviction in one process could delete an archive that another process is about to open. The
+ * index is still updated under a file lock and archives are published by atomic renames so that an interrupted process
+ * does not leave a corrupted cache behind.
+ *
+ * @author L.A.H.
+ *
+ */
+public class PackageArchiveCache {
+
+	private static final String INDEX_FILE = "index", LOCK_FILE = ".lock";
+
+	private static final Pattern index_line_pattern = Pattern.compile("([^ ]+) ([^ ]+) ([0-9a-f]+)\n");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static String getKey(String pkg, String revision) {
+		return pkg + " " + revision;
+	}
+
+	private final File cache_dir;
+
+	/**
+	 * Map {@code [package] [revision]} to the checksum of the archive
+	 */
+	private final Map<String, String> index = new HashMap<String, String>();
+
+	private long index_last_modified = -1;
+
+	private final long max_size;
+
+	private final AtomicLong num_hits = new AtomicLong(), num_misses = new AtomicLong();
+
+	/**
+	 * Number of users of each archive in use in this process, by checksum
+	 */
+	private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+	/**
+	 * Create (or open an existing) cache
+	 *
+	 * @param cache_dir
+	 *            Directory to store the archives and the index
+	 * @param max_size
+	 *            Maximum total size (in bytes) of the cached archives
+	 */
+	public PackageArchiveCache(File cache_dir, long max_size) {
+		this.cache_dir = cache_dir;
+		this.max_size = max_size;
+	}
+
+	/**
+	 * Remove the least recently used archives until the total size is within the bound
+	 *
+	 * @param keep
+	 *            Checksum of an archive which must not be removed
+	 */
+	private void evict(String keep) {
+		File[] archives = cache_dir.listFiles();
+		if (archives == null)
+			return;
+		long total_size = 0;
+		for (File f : archives) {
+			if (f.getName().endsWith(InstallPackage.PACKAGE_EXTENSION))
+				total_size += f.length();
+		}
+		if (total_size <= max_size)
+			return;
+		final Map<File, Long> last_modified = new HashMap<File, Long>();
+		for (File f : archives)
+			last_modified.put(f, f.lastModified());
+		Arrays.sort(archives, new Comparator<File>() {
+
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare(last_modified.get(f1), last_modified.get(f2));
+			}
+
+		});
+		Set<String> evicted = new HashSet<String>();
+		for (File f : archives) {
+			if (total_size <= max_size)
+				break;
+			String name = f.getName();
+			if (!name.endsWith(InstallPackage.PACKAGE_EXTENSION))
+				continue;
+			String checksum = name.substring(0, name.length() - InstallPackage.PACKAGE_EXTENSION.length());
+			if (checksum.equals(keep) || pins.containsKey(checksum))
+				continue;
+			long size = f.length();
+			if (f.delete()) {
+				total_size -= size;
+				evicted.add(checksum);
+			}
+		}
+		Iterator<String> it = index.values().iterator();
+		while (it.hasNext()) {
+			if (evicted.contains(it.next()))
+				it.remove();
+		}
+	}
+
+	/**
+	 * Look up an archive
+	 *
+	 * @param pkg
+	 *            Name of the package
+	 * @param revision
+	 *            Revision of the package
+	 * @return The cached archive, pinned until it is released, or {@code null} if it is not in the cache
+	 */
+	public synchronized File get(String pkg, String revision) {
+		String checksum = index.get(getKey(pkg, revision));
+		if (checksum == null && reloadIndexIfModified())
+			checksum = index.get(getKey(pkg, revision));
+		if (checksum != null) {
+			File archive = getArchiveFile(checksum);
+			// touch so that the archive becomes the most recently used
+			if (archive.setLastModified(System.currentTimeMillis())) {
+				pin(checksum);
+				num_hits.incrementAndGet();
+				return archive;
+			}
+			// evicted by another process
+			index.remove(getKey(pkg, revision));
+		}
+		num_misses.incrementAndGet();
+		return null;
+	}
+
+	private File getArchiveFile(String checksum) {
+		return new File(cache_dir, checksum + InstallPackage.PACKAGE_EXTENSION);
+	}
+
+	/**
+	 * Get the checksum of a cached archive without reading it
+	 *
+	 * @param archive
+	 *            An archive file
+	 * @return The checksum if the archive is stored in this cache, {@code null} otherwise
+	 */
+	public String getChecksum(File archive) {
+		String name = archive.getName();
+		if (!cache_dir.equals(archive.getParentFile()) || !name.endsWith(InstallPackage.PACKAGE_EXTENSION))
+			return null;
+		return name.substring(0, name.length() - InstallPackage.PACKAGE_EXTENSION.length());
+	}
+
+	public File getDirectory() {
+		return cache_dir;
+	}
+
+	public long getNumberOfHits() {
+		return num_hits.get();
+	}
+
+	public long getNumberOfMisses() {
+		return num_misses.get();
+	}
+
+	private void pin(String checksum) {
+		Integer count = pins.get(checksum);
+		pins.put(checksum, count == null ? 1 : count + 1);
+	}
+
+	/**
+	 * Pin an archive so that it is not evicted until it is released
+	 *
+	 * @param archive
+	 *            An archive file
+	 * @return {@code true} if the archive is stored in this cache (and is pinned)
+	 */
+	public synchronized boolean pin(File archive) {
+		String checksum = getChecksum(archive);
+		if (checksum == null)
+			return false;
+		pin(checksum);
+		return true;
+	}
+
+	/**
+	 * Add an archive to the cache; the archive is copied rather than hard linked, so that the cached archive is not
+	 * changed when the original file is rewritten in place
+	 *
+	 * @param pkg
+	 *            Name of the package
+	 * @param revision
+	 *            Revision of the package
+	 * @param archive
+	 *            The archive of the package
+	 * @param checksum
+	 *            SHA-1 checksum of the archive in lower case hexadecimal
+	 * @return The cached archive, pinned until it is released
+	 * @throws IOException
+	 */
+	public synchronized File put(String pkg, String revision, File archive, String checksum) throws IOException {
+		cache_dir.mkdirs();
+		File cached_archive = getArchiveFile(checksum);
+		if (!cached_archive.exists()) {
+			File temp_file = File.createTempFile(checksum, ".tmp", cache_dir);
+			try {
+				transfer(archive, temp_file);
+				Files.move(temp_file.toPath(), cached_archive.toPath(), StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				Files.deleteIfExists(temp_file.toPath());
+			}
+		}
+		cached_archive.setLastModified(System.currentTimeMillis());
+		FileChannel lock_channel = new RandomAccessFile(new File(cache_dir, LOCK_FILE), "rw").getChannel();
+		try {
+			FileLock lock = lock_channel.lock();
+			try {
+				reloadIndexIfModified();
+				index.put(getKey(pkg, revision), checksum);
+				evict(checksum);
+				writeIndex();
+			} finally {
+				lock.release();
+			}
+		} finally {
+			lock_channel.close();
+		}
+		pin(checksum);
+		return cached_archive;
+	}
+
+	/**
+	 * Release an archive pinned by {@link #get(String, String)}, {@link #put(String, String, File, String)} or
+	 * {@link #pin(File)}
+	 *
+	 * @param archive
+	 *            The archive, ignored if it is not a pinned archive of this cache
+	 */
+	public synchronized void release(File archive) {
+		String checksum = getChecksum(archive);
+		Integer count = (checksum == null ? null : pins.get(checksum));
+		if (count == null)
+			return;
+		if (count > 1)
+			pins.put(checksum, count - 1);
+		else
+			pins.remove(checksum);
+	}
+
+	/**
+	 * Reload the index if it is modified (by another process) since it is last read or written
+	 *
+	 * @return {@code true} if the index is reloaded
+	 */
+	private boolean reloadIndexIfModified() {
+		File index_file = new File(cache_dir, INDEX_FILE);
+		long last_modified = index_file.lastModified();
+		if (last_modified == index_last_modified)
+			return false;
+		try {
+			String content = Streams.readTextFile(index_file);
+			index.clear();
+			Matcher matcher = index_line_pattern.matcher(content);
+			while (matcher.find())
+				index.put(getKey(matcher.group(1), matcher.group(2)), matcher.group(3));
+			index_last_modified = last_modified;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void transfer(File source, File target) throws IOException {
+		FileChannel in = new FileInputStream(source).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try {
+				long size = in.size(), position = 0;
+				while (position < size)
+					position += in.transferTo(position, size - position, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the index to a temporary file and rename it into place
+	 *
+	 * @throws IOException
+	 */
+	private void writeIndex() throws IOException {
+		StringBuilder content = new StringBuilder();
+		for (Map.Entry<String, String> entry : index.entrySet())
+			content.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		File temp_file = new File(cache_dir, INDEX_FILE + ".tmp");
+		FileChannel out = new FileOutputStream(temp_file).getChannel();
+		try {
+			ByteBuffer data = ByteBuffer.wrap(content.toString().getBytes(UTF8));
+			while (data.hasRemaining())
+				out.write(data);
+		} finally {
+			out.close();
+		}
+		File index_file = new File(cache_dir, INDEX_FILE);
+		Files.move(temp_file.toPath(), index_file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		index_last_modified = index_file.lastModified();
+	}
+
+}
@@ -0,0 +1,321 @@
+package lah.tex.manage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lah.tex.AssetBundle;
+import lah.tex.IEnvironment;
+
+/**
+ * Searchable catalog of all TeX Live packages with their short descriptions.
+ *
+ * Package names and descriptions are indexed by their (lower case) trigrams; each trigram maps to the sorted list of
+ * ids of the packages containing it. A query is answered by intersecting the lists of its trigrams and verifying the
+ * few remaining candidates. Descriptions are not kept as individual strings but loaded on demand, either from the
+ * memory-mapped {@link AssetBundle} or from the content of {@link IEnvironment#LAHTEX_DESC}.
+ *
+ * @author L.A.H.
+ *
+ */
+public class PackageCatalog {
+
+	/**
+	 * Growable list of package ids
+	 */
+	private static class Postings {
+
+		int[] ids = new int[4];
+
+		int size;
+
+		void add(int id) {
+			if (size > 0 && ids[size - 1] == id)
+				return;
+			if (size == ids.length)
+				ids = Arrays.copyOf(ids, 2 * size);
+			ids[size++] = id;
+		}
+
+	}
+
+	private static final Pattern line_pattern = Pattern.compile("([^ ]+) (.*)\n");
+
+	/**
+	 * Ranks of a matching package, packages of lower rank come first
+	 */
+	private static final int RANK_EXACT_NAME = 0, RANK_NAME_PREFIX = 1, RANK_NAME = 2, RANK_DESCRIPTION = 3;
+
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Build the catalog from the precompiled assets
+	 *
+	 * @param bundle
+	 *            Bundle containing the section {@link IEnvironment#LAHTEX_DESC}
+	 * @return The catalog
+	 */
+	public static PackageCatalog load(AssetBundle bundle) {
+		int num_packages = bundle.size(IEnvironment.LAHTEX_DESC);
+		PackageCatalog catalog = new PackageCatalog(bundle, null, num_packages);
+		for (int i = 0; i < num_packages; i++)
+			catalog.addPackage(i, bundle.getKey(IEnvironment.LAHTEX_DESC, i),
+					bundle.getValue(IEnvironment.LAHTEX_DESC, i));
+		catalog.buildIndex();
+		return catalog;
+	}
+
+	/**
+	 * Build the catalog from the content of the text file "desc"
+	 *
+	 * @param desc_content
+	 *            Lines of format {@code [package_name] [short_description]}
+	 * @return The catalog
+	 */
+	public static PackageCatalog load(String desc_content) {
+		List<int[]> lines = new ArrayList<int[]>();
+		Matcher matcher = line_pattern.matcher(desc_content);
+		while (matcher.find())
+			lines.add(new int[] { matcher.start(1), matcher.end(1), matcher.start(2), matcher.end(2) });
+		PackageCatalog catalog = new PackageCatalog(null, desc_content, lines.size());
+		for (int i = 0; i < lines.size(); i++) {
+			int[] l = lines.get(i);
+			catalog.desc_offsets[2 * i] = l[2];
+			catalog.desc_offsets[2 * i + 1] = l[3];
+			catalog.addPackage(i, desc_content.substring(l[0], l[1]), desc_content.substring(l[2], l[3]));
+		}
+		catalog.buildIndex();
+		return catalog;
+	}
+
+	/**
+	 * Pack the three characters starting at some position of a string into a trigram key
+	 */
+	private static long trigram(String s, int i) {
+		return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+	}
+
+	private final AssetBundle bundle;
+
+	private final String desc_content;
+
+	/**
+	 * Start and end position of each description in {@link #desc_content}
+	 */
+	private final int[] desc_offsets;
+
+	private Map<Long, int[]> desc_trigrams;
+
+	private final String[] lower_names;
+
+	private Map<Long, int[]> name_trigrams;
+
+	private final String[] names;
+
+	private Map<Long, Postings> temp_desc_trigrams, temp_name_trigrams;
+
+	private PackageCatalog(AssetBundle bundle, String desc_content, int num_packages) {
+		this.bundle = bundle;
+		this.desc_content = desc_content;
+		desc_offsets = (desc_content == null ? null : new int[2 * num_packages]);
+		names = new String[num_packages];
+		lower_names = new String[num_packages];
+		temp_name_trigrams = new HashMap<Long, Postings>();
+		temp_desc_trigrams = new HashMap<Long, Postings>();
+	}
+
+	private void addPackage(int id, String name, String description) {
+		names[id] = name;
+		lower_names[id] = name.toLowerCase();
+		addTrigrams(temp_name_trigrams, lower_names[id], id);
+		addTrigrams(temp_desc_trigrams, description.toLowerCase(), id);
+	}
+
+	private void addTrigrams(Map<Long, Postings> trigrams, String s, int id) {
+		for (int i = 0; i + 3 <= s.length(); i++) {
+			Long t = trigram(s, i);
+			Postings p = trigrams.get(t);
+			if (p == null)
+				trigrams.put(t, p = new Postings());
+			p.add(id);
+		}
+	}
+
+	/**
+	 * Convert the temporary growable posting lists to compact arrays
+	 */
+	private void buildIndex() {
+		name_trigrams = compact(temp_name_trigrams);
+		desc_trigrams = compact(temp_desc_trigrams);
+		temp_name_trigrams = temp_desc_trigrams = null;
+	}
+
+	private Map<Long, int[]> compact(Map<Long, Postings> trigrams) {
+		Map<Long, int[]> result = new HashMap<Long, int[]>(2 * trigrams.size());
+		for (Map.Entry<Long, Postings> t : trigrams.entrySet())
+			result.put(t.getKey(), Arrays.copyOf(t.getValue().ids, t.getValue().size));
+		return result;
+	}
+
+	/**
+	 * Find the candidate packages for a query from a trigram index
+	 *
+	 * @return Sorted ids of packages containing all trigrams of the query, possibly with false positives
+	 */
+	private int[] getCandidates(Map<Long, int[]> trigrams, String query) {
+		int[] result = null;
+		for (int i = 0; i + 3 <= query.length(); i++) {
+			int[] p = trigrams.get(trigram(query, i));
+			if (p == null)
+				return new int[0];
+			result = (result == null ? p : intersect(result, p));
+			if (result.length == 0)
+				break;
+		}
+		return result;
+	}
+
+	/**
+	 * Get the short description of a package, which is loaded on demand
+	 *
+	 * @param id
+	 *            Id of the package
+	 * @return The short description
+	 */
+	String getDescription(int id) {
+		if (bundle != null)
+			return bundle.getValue(IEnvironment.LAHTEX_DESC, id);
+		return desc_content.substring(desc_offsets[2 * id], desc_offsets[2 * id + 1]);
+	}
+
+	/**
+	 * Get all packages in the catalog
+	 *
+	 * @return List of all packages, whose descriptions are loaded on demand
+	 */
+	public List<TLPackage> getPackages() {
+		List<TLPackage> packages = new ArrayList<TLPackage>(names.length);
+		for (int i = 0; i < names.length; i++)
+			packages.add(new TLPackage(this, i, names[i]));
+		return packages;
+	}
+
+	/**
+	 * Search for packages whose name or short description contains a query (ignoring case). Results are ranked: exact
+	 * name match first, then packages whose name starts with or contains the query and lastly packages whose
+	 * description contains the query; packages of the same rank are ordered by the length of their names.
+	 *
+	 * Queries of less than three characters only match the package names.
+	 *
+	 * @param query
+	 *            The search query
+	 * @param offset
+	 *            Number of results to skip
+	 * @param limit
+	 *            Maximum number of results to return
+	 * @return A page of matching packages
+	 */
+	public List<TLPackage> search(String query, int offset, int limit) {
+		String q = query.toLowerCase();
+		long[] ranked = rankCandidates(q);
+		List<TLPackage> result = new ArrayList<TLPackage>();
+		int n = 0;
+		for (int i = 0; i < ranked.length && result.size() < limit; i++) {
+			int id = (int) (ranked[i] & 0xFFFFF);
+			// descriptions are only verified up to the requested page
+			if ((ranked[i] >>> 40) == RANK_DESCRIPTION && !getDescription(id).toLowerCase().contains(q))
+				continue;
+			if (n++ >= offset)
+				result.add(new TLPackage(this, id, names[id]));
+		}
+		return result;
+	}
+
+	/**
+	 * Count the number of packages matching a query
+	 *
+	 * @param query
+	 *            The search query
+	 * @return Total number of results of {@link #search(String, int, int)}
+	 */
+	public int searchCount(String query) {
+		String q = query.toLowerCase();
+		int n = 0;
+		for (long r : rankCandidates(q)) {
+			if ((r >>> 40) != RANK_DESCRIPTION || getDescription((int) (r & 0xFFFFF)).toLowerCase().contains(q))
+				n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Rank the candidate packages for a (lower case) query; the candidates matched by description only still need to
+	 * be verified
+	 *
+	 * @return Sorted array of keys {@code [rank][name length][package id]}
+	 */
+	private long[] rankCandidates(String q) {
+		if (q.isEmpty())
+			return new long[0];
+		int[] name_candidates, desc_candidates;
+		if (q.length() < 3) {
+			name_candidates = new int[names.length];
+			for (int i = 0; i < name_candidates.length; i++)
+				name_candidates[i] = i;
+			desc_candidates = new int[0];
+		} else {
+			name_candidates = getCandidates(name_trigrams, q);
+			desc_candidates = getCandidates(desc_trigrams, q);
+		}
+
+		long[] ranked = new long[name_candidates.length + desc_candidates.length];
+		boolean[] name_matched = new boolean[names.length];
+		int n = 0;
+		for (int id : name_candidates) {
+			String name = lower_names[id];
+			int rank;
+			if (name.equals(q))
+				rank = RANK_EXACT_NAME;
+			else if (name.startsWith(q))
+				rank = RANK_NAME_PREFIX;
+			else if (name.contains(q))
+				rank = RANK_NAME;
+			else
+				continue;
+			name_matched[id] = true;
+			ranked[n++] = ((long) rank << 40) | ((long) Math.min(name.length(), 0xFFFFF) << 20) | id;
+		}
+		for (int id : desc_candidates) {
+			if (!name_matched[id])
+				ranked[n++] = ((long) RANK_DESCRIPTION << 40) | ((long) Math.min(names[id].length(), 0xFFFFF) << 20)
+						| id;
+		}
+		ranked = Arrays.copyOf(ranked, n);
+		Arrays.sort(ranked);
+		return ranked;
+	}
+
+	public int size() {
+		return names.length;
+	}
+
+}
@@ -0,0 +1,164 @@
+package lah.tex.manage;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Inverted index mapping a file name to the packages containing it, built once from the content of
+ * {@link lah.tex.IEnvironment#LAHTEX_INDEX}.
+ *
+ * File names are kept in an open-addressing hash table (linear probing) whose slots point to arrays of package ids;
+ * the package names themselves are interned and stored once in {@link #package_names}.
+ *
+ * @author L.A.H.
+ *
+ */
+public class PackageFileIndex {
+
+	/**
+	 * Build the index from the content of the text file "index"
+	 *
+	 * @param index_content
+	 *            Lines of format {@code [package_name]/[file_1]/[file_2]/.../[file_n]/}
+	 * @return The inverted index
+	 */
+	public static PackageFileIndex load(String index_content) {
+		// First pass: count packages and file entries to size the tables
+		int num_packages = 0, num_entries = 0;
+		int len = index_content.length();
+		for (int i = 0; i < len; i++) {
+			char c = index_content.charAt(i);
+			if (c == '/')
+				num_entries++;
+			else if (c == '\n')
+				num_packages++;
+		}
+		PackageFileIndex index = new PackageFileIndex(num_packages + 1, num_entries);
+
+		// Second pass: extract the package name and its files on each line
+		int line_start = 0, pkg_id = 0;
+		while (line_start < len) {
+			int line_end = index_content.indexOf('\n', line_start);
+			if (line_end < 0)
+				line_end = len;
+			int k = index_content.indexOf('/', line_start);
+			if (k > line_start && k < line_end) {
+				index.package_names[pkg_id] = index_content.substring(line_start, k).intern();
+				int j;
+				while ((j = index_content.indexOf('/', k + 1)) >= 0 && j < line_end) {
+					if (j > k + 1)
+						index.put(index_content.substring(k + 1, j), pkg_id);
+					k = j;
+				}
+				pkg_id++;
+			}
+			line_start = line_end + 1;
+		}
+		index.num_packages = pkg_id;
+		return index;
+	}
+
+	/**
+	 * Smallest power of 2 such that the table is at most half full
+	 */
+	private static int tableCapacity(int num_keys) {
+		int capacity = 16;
+		while (capacity < 2 * num_keys)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	private int num_files;
+
+	private int num_packages;
+
+	private final String[] package_names;
+
+	/**
+	 * Slots of the open-addressing table: the file names and the ids of the packages containing them
+	 */
+	private String[] table_files;
+
+	private int[][] table_packages;
+
+	private PackageFileIndex(int max_num_packages, int max_num_files) {
+		package_names = new String[max_num_packages];
+		int capacity = tableCapacity(max_num_files);
+		table_files = new String[capacity];
+		table_packages = new int[capacity][];
+	}
+
+	/**
+	 * Find all packages containing a file
+	 *
+	 * @param file_name
+	 *            Name of the file to search for
+	 * @return Names of packages containing the file or {@code null} if there is none
+	 */
+	public String[] get(String file_name) {
+		int slot = probe(file_name);
+		if (table_files[slot] == null)
+			return null;
+		int[] pkg_ids = table_packages[slot];
+		String[] result = new String[pkg_ids.length];
+		for (int i = 0; i < pkg_ids.length; i++)
+			result[i] = package_names[pkg_ids[i]];
+		return result;
+	}
+
+	/**
+	 * Find the packages containing each of a collection of files
+	 *
+	 * @param file_names
+	 *            Names of the files to search for
+	 * @param result
+	 *            Map to put each file that is found and the names of packages containing it
+	 */
+	public void getAll(Collection<String> file_names, Map<String, String[]> result) {
+		for (String f : file_names) {
+			String[] packages = get(f);
+			if (packages != null)
+				result.put(f, packages);
+		}
+	}
+
+	public int getNumberOfFiles() {
+		return num_files;
+	}
+
+	public int getNumberOfPackages() {
+		return num_packages;
+	}
+
+	/**
+	 * Locate the slot containing a file name or the empty slot where it should be inserted
+	 */
+	private int probe(String file_name) {
+		int mask = table_files.length - 1;
+		int h = file_name.hashCode();
+		int slot = (h ^ (h >>> 16)) & mask;
+		String f;
+		while ((f = table_files[slot]) != null && !f.equals(file_name))
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void put(String file_name, int pkg_id) {
+		int slot = probe(file_name);
+		if (table_files[slot] == null) {
+			table_files[slot] = file_name;
+			table_packages[slot] = new int[] { pkg_id };
+			num_files++;
+		} else {
+			int[] pkg_ids = table_packages[slot];
+			// package ids are added in increasing order, so a duplicate can only be the last one
+			if (pkg_ids[pkg_ids.length - 1] == pkg_id)
+				return;
+			int[] new_pkg_ids = new int[pkg_ids.length + 1];
+			System.arraycopy(pkg_ids, 0, new_pkg_ids, 0, pkg_ids.length);
+			new_pkg_ids[pkg_ids.length] = pkg_id;
+			table_packages[slot] = new_pkg_ids;
+		}
+	}
+
+}
@@ -0,0 +1,108 @@
+package lah.tex.manage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A file made available in a given directory (e.g. a package archive which must be in the TeX root directory to be
+ * extracted by busybox) with as little data copying as possible: by a hard link if supported, otherwise by renaming the
+ * file if it is on the same file system, and only as a last resort by a kernel-side {@link FileChannel#transferTo}
+ * copy.
+ *
+ * @author L.A.H.
+ *
+ */
+class StagedFile {
+
+	static enum Method {
+		COPY, HARD_LINK, NONE, RENAME
+	}
+
+	/**
+	 * Stage a file
+	 *
+	 * @param source
+	 *            The file to stage
+	 * @param dir
+	 *            Directory to make the file available in
+	 * @return The staged file, to be released once it is no longer needed
+	 * @throws IOException
+	 */
+	static StagedFile stage(File source, File dir) throws IOException {
+		if (source.getAbsoluteFile().getParentFile().equals(dir.getAbsoluteFile()))
+			return new StagedFile(source, source, Method.NONE);
+		File target = new File(dir, source.getName());
+		Files.deleteIfExists(target.toPath());
+		try {
+			Files.createLink(target.toPath(), source.toPath());
+			return new StagedFile(source, target, Method.HARD_LINK);
+		} catch (IOException | UnsupportedOperationException e) {
+			// cross-device or unsupported by the file system
+		}
+		try {
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return new StagedFile(source, target, Method.RENAME);
+		} catch (IOException e) {
+			// not on the same file system
+		}
+		FileChannel in = new FileInputStream(source).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(target).getChannel();
+			try {
+				long size = in.size(), position = 0;
+				while (position < size)
+					position += in.transferTo(position, size - position, out);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		return new StagedFile(source, target, Method.COPY);
+	}
+
+	private final File file;
+
+	private final Method method;
+
+	private final File source;
+
+	private StagedFile(File source, File file, Method method) {
+		this.source = source;
+		this.file = file;
+		this.method = method;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	Method getMethod() {
+		return method;
+	}
+
+	/**
+	 * Remove the staged file, restoring the source if it was renamed
+	 *
+	 * @throws IOException
+	 */
+	void release() throws IOException {
+		switch (method) {
+		case RENAME:
+			Files.move(file.toPath(), source.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			break;
+		case HARD_LINK:
+		case COPY:
+			Files.deleteIfExists(file.toPath());
+			break;
+		default:
+			break;
+		}
+	}
+
+}
@@ -4,6 +4,13 @@ public class TLPackage implements Comparable<TLPackage> {
 
 	public static final String KEY_PKG_SHORT_DESCRIPTION = "shortdesc";
 
+	/**
+	 * Catalog to load the description from when it is first requested
+	 */
+	private PackageCatalog catalog;
+
+	private int catalog_id;
+
 	private String description;
 
 	private boolean is_installed;
@@ -12,6 +19,12 @@ public class TLPackage implements Comparable<TLPackage> {
 
 	private int revision;
 
+	TLPackage(PackageCatalog catalog, int catalog_id, String pkg_name) {
+		this.catalog = catalog;
+		this.catalog_id = catalog_id;
+		name = pkg_name;
+	}
+
 	public TLPackage(String pkg_name, String short_desc) {
 		name = pkg_name;
 		description = short_desc;
@@ -44,6 +57,8 @@ public class TLPackage implements Comparable<TLPackage> {
 	}
 
 	public String getDescription() {
+		if (description == null && catalog != null)
+			return catalog.getDescription(catalog_id);
 		return description;
 	}
 
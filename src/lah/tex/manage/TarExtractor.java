@@ -0,0 +1,334 @@
+package lah.tex.manage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming extractor of (ustar, GNU or pax) tar archives.
+ *
+ * Nothing is written outside of the destination directory: entries with absolute or escaping paths are skipped,
+ * symbolic links must point inside the directory and no entry is written through a linked directory which resolves
+ * outside of it.
+ *
+ * @author L.A.H.
+ *
+ */
+public class TarExtractor {
+
+	/**
+	 * Listener to be notified of the progress of an extraction
+	 */
+	public static interface ProgressListener {
+
+		/**
+		 * Invoked after an entry is extracted
+		 *
+		 * @param path
+		 *            Path of the entry relative to the destination directory
+		 * @param size
+		 *            Size of the entry in bytes
+		 */
+		void onEntryExtracted(String path, long size);
+
+	}
+
+	private static final int BLOCK_SIZE = 512;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static boolean isZeroBlock(byte[] block) {
+		for (byte b : block) {
+			if (b != 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a numeric header field, in octal or (GNU) base-256
+	 */
+	private static long parseNumber(byte[] header, int off, int len) {
+		if ((header[off] & 0x80) != 0) {
+			long value = header[off] & 0x7F;
+			for (int i = 1; i < len; i++)
+				value = (value << 8) | (header[off + i] & 0xFF);
+			return value;
+		}
+		long value = 0;
+		for (int i = off; i < off + len; i++) {
+			byte c = header[i];
+			if (c == 0 || (c == ' ' && value > 0))
+				break;
+			if (c >= '0' && c <= '7')
+				value = (value << 3) + (c - '0');
+		}
+		return value;
+	}
+
+	private static String parseString(byte[] header, int off, int len) {
+		int end = off;
+		while (end < off + len && header[end] != 0)
+			end++;
+		return new String(header, off, end - off, UTF8);
+	}
+
+	/**
+	 * Get the value of a key in a pax extended header, whose records are of form {@code [length] [key]=[value]\n}
+	 */
+	private static String parsePaxValue(byte[] pax, String key) {
+		int i = 0;
+		while (i < pax.length) {
+			int space = i;
+			while (space < pax.length && pax[space] != ' ')
+				space++;
+			if (space >= pax.length)
+				break;
+			int record_length;
+			try {
+				record_length = Integer.parseInt(new String(pax, i, space - i, UTF8));
+			} catch (NumberFormatException e) {
+				break;
+			}
+			if (record_length <= 0 || i + record_length > pax.length)
+				break;
+			String record = new String(pax, space + 1, i + record_length - space - 2, UTF8);
+			if (record.startsWith(key + "="))
+				return record.substring(key.length() + 1);
+			i += record_length;
+		}
+		return null;
+	}
+
+	private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+		int off = 0;
+		while (off < len) {
+			int n = in.read(b, off, len - off);
+			if (n < 0)
+				throw new EOFException("Unexpected end of tar archive");
+			off += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long len, byte[] buffer) throws IOException {
+		while (len > 0) {
+			int n = in.read(buffer, 0, (int) Math.min(len, buffer.length));
+			if (n < 0)
+				throw new EOFException("Unexpected end of tar archive");
+			len -= n;
+		}
+	}
+
+	private final byte[] buffer = new byte[1 << 16];
+
+	private final File dest_dir;
+
+	/**
+	 * Canonical path of the destination directory, known once an extraction starts
+	 */
+	private String dest_path;
+
+	private final ProgressListener listener;
+
+	/**
+	 * Create an extractor
+	 *
+	 * @param dest_dir
+	 *            Directory to extract to
+	 * @param listener
+	 *            Listener to notify after each extracted entry, can be {@code null}
+	 */
+	public TarExtractor(File dest_dir, ProgressListener listener) {
+		this.dest_dir = dest_dir;
+		this.listener = listener;
+	}
+
+	/**
+	 * Extract all entries of an archive
+	 *
+	 * @param in
+	 *            Stream of the (uncompressed) tar archive
+	 * @return Paths, relative to the destination directory, of the extracted files and links (but not directories)
+	 * @throws IOException
+	 */
+	public List<String> extract(InputStream in) throws IOException {
+		dest_dir.mkdirs();
+		dest_path = dest_dir.getCanonicalPath();
+		List<String> extracted_paths = new ArrayList<String>();
+		byte[] header = new byte[BLOCK_SIZE];
+		String long_name = null, long_link = null;
+		while (true) {
+			readFully(in, header, BLOCK_SIZE);
+			if (isZeroBlock(header))
+				break;
+			String name = parseString(header, 0, 100);
+			long mode = parseNumber(header, 100, 8);
+			long size = parseNumber(header, 124, 12);
+			long mtime = parseNumber(header, 136, 12);
+			char type = (char) header[156];
+			String link = parseString(header, 157, 100);
+			if (parseString(header, 257, 6).startsWith("ustar")) {
+				String prefix = parseString(header, 345, 155);
+				if (!prefix.isEmpty() && type != 'L' && type != 'K')
+					name = prefix + "/" + name;
+			}
+			long padding = (BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE;
+
+			// Extension headers which apply to the next entry
+			if (type == 'L' || type == 'K' || type == 'x') {
+				if (size > Integer.MAX_VALUE)
+					throw new IOException("Corrupt tar header");
+				byte[] data = new byte[(int) size];
+				readFully(in, data, data.length);
+				skipFully(in, padding, buffer);
+				if (type == 'L')
+					long_name = parseString(data, 0, data.length);
+				else if (type == 'K')
+					long_link = parseString(data, 0, data.length);
+				else {
+					String path = parsePaxValue(data, "path"), linkpath = parsePaxValue(data, "linkpath");
+					if (path != null)
+						long_name = path;
+					if (linkpath != null)
+						long_link = linkpath;
+				}
+				continue;
+			}
+			if (long_name != null)
+				name = long_name;
+			if (long_link != null)
+				link = long_link;
+			long_name = long_link = null;
+
+			String path = normalize(name);
+			if (path == null || type == 'g') {
+				// skip unsafe or irrelevant entries
+				skipFully(in, size + padding, buffer);
+				continue;
+			}
+			File target = new File(dest_dir, path);
+			checkInside(target.getParentFile(), path);
+			switch (type) {
+			case '5':
+				target.mkdirs();
+				break;
+			case '2':
+				// relative to the directory of the link, which is inside the destination directory
+				Path parent = Paths.get(path).getParent();
+				Path resolved_link = (parent == null ? Paths.get(link) : parent.resolve(link)).normalize();
+				if (link.isEmpty() || Paths.get(link).isAbsolute() || resolved_link.startsWith(".."))
+					throw new IOException("Unsafe symbolic link in tar archive: " + path + " -> " + link);
+				target.getParentFile().mkdirs();
+				Files.deleteIfExists(target.toPath());
+				Files.createSymbolicLink(target.toPath(), Paths.get(link));
+				extracted_paths.add(path);
+				break;
+			case '1':
+				String link_path = normalize(link);
+				if (link_path == null)
+					throw new IOException("Unsafe hard link in tar archive: " + link);
+				checkInside(new File(dest_dir, link_path), link);
+				target.getParentFile().mkdirs();
+				Files.deleteIfExists(target.toPath());
+				Files.createLink(target.toPath(), new File(dest_dir, link_path).toPath());
+				extracted_paths.add(path);
+				break;
+			case '0':
+			case '\0':
+			case '7':
+				writeFile(in, target, size);
+				skipFully(in, padding, buffer);
+				if ((mode & 0111) != 0)
+					target.setExecutable(true, true);
+				if (mtime > 0)
+					target.setLastModified(mtime * 1000);
+				extracted_paths.add(path);
+				break;
+			default:
+				// devices, FIFOs, ...: not expected in TeX Live packages
+				skipFully(in, size + padding, buffer);
+				continue;
+			}
+			if (listener != null)
+				listener.onEntryExtracted(path, size);
+		}
+		return extracted_paths;
+	}
+
+	/**
+	 * Check that a file is inside the destination directory once symbolic links are resolved; the file need not exist,
+	 * its nearest existing ancestor is checked
+	 *
+	 * @param file
+	 *            The file
+	 * @param path
+	 *            Path of the entry, for the error message
+	 * @throws IOException
+	 *             If the file resolves outside of the destination directory
+	 */
+	private void checkInside(File file, String path) throws IOException {
+		File existing = file;
+		while (existing != null && !Files.exists(existing.toPath(), LinkOption.NOFOLLOW_LINKS))
+			existing = existing.getParentFile();
+		String canonical_path = (existing == null ? null : existing.getCanonicalPath());
+		if (canonical_path == null
+				|| !(canonical_path.equals(dest_path) || canonical_path.startsWith(dest_path + File.separator)))
+			throw new IOException("Unsafe path in tar archive (through a symbolic link): " + path);
+	}
+
+	/**
+	 * Normalize the path of an entry
+	 *
+	 * @return The path without leading "./" and trailing "/" or {@code null} if the path is absolute or escapes the
+	 *         destination directory
+	 */
+	private String normalize(String name) {
+		StringBuilder path = new StringBuilder(name.length());
+		for (String component : name.split("/")) {
+			if (component.isEmpty() || component.equals("."))
+				continue;
+			if (component.equals(".."))
+				return null;
+			if (path.length() > 0)
+				path.append('/');
+			path.append(component);
+		}
+		if (name.startsWith("/") || path.length() == 0)
+			return null;
+		return path.toString();
+	}
+
+	private void writeFile(InputStream in, File target, long size) throws IOException {
+		File parent = target.getParentFile();
+		if (!parent.exists())
+			parent.mkdirs();
+		// replace rather than write through an existing (possibly linked) file
+		Files.deleteIfExists(target.toPath());
+		FileChannel out = new FileOutputStream(target).getChannel();
+		try {
+			while (size > 0) {
+				int n = in.read(buffer, 0, (int) Math.min(size, buffer.length));
+				if (n < 0)
+					throw new EOFException("Unexpected end of tar archive");
+				ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+				while (data.hasRemaining())
+					out.write(data);
+				size -= n;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,670 @@
+package lah.tex.manage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Input stream decompressing data in the XZ format, as used by the TeX Live package archives.
+ *
+ * Only blocks with a single LZMA2 filter are supported (this is what {@code xz} produces by default); an
+ * {@link UnsupportedFormatException} is raised on other filter chains so that the caller can fall back to an external
+ * decompressor. The integrity check of each block (CRC32, CRC64 or SHA-256) is verified. Decompression stops at the
+ * end of the first stream.
+ *
+ * @author L.A.H.
+ *
+ */
+public class XZInputStream extends InputStream {
+
+	/**
+	 * Input stream counting the number of bytes read, to compute the block padding
+	 */
+	private static class CountingInputStream extends InputStream {
+
+		long count;
+
+		private final InputStream in;
+
+		CountingInputStream(InputStream in) {
+			this.in = in;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b < 0)
+				throw new EOFException("Unexpected end of XZ data");
+			count++;
+			return b;
+		}
+
+		void readFully(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = in.read(b, off, len);
+				if (n < 0)
+					throw new EOFException("Unexpected end of XZ data");
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		int readUnsignedShort() throws IOException {
+			return (read() << 8) | read();
+		}
+
+	}
+
+	/**
+	 * Decoder of LZMA2 data, decompressed into a circular dictionary buffer which is then copied to the caller
+	 */
+	private static class LZMA2Decoder {
+
+		private static final int ALIGN_BITS = 4, DIST_MODEL_START = 4, DIST_MODEL_END = 14, DIST_SLOTS = 64,
+				DIST_STATES = 4, LIT_STATES = 7, MATCH_LEN_MAX = 273, MATCH_LEN_MIN = 2, POS_STATES_MAX = 16,
+				STATES = 12;
+
+		private static final int LOW_SYMBOLS = 8, MID_SYMBOLS = 8, HIGH_SYMBOLS = 256;
+
+		private static void initProbs(short[] probs) {
+			Arrays.fill(probs, (short) 1024);
+		}
+
+		private static void initProbs(short[][] probs) {
+			for (short[] p : probs)
+				initProbs(p);
+		}
+
+		private final short[] dist_align = new short[1 << ALIGN_BITS];
+
+		private final short[][] dist_slots = new short[DIST_STATES][DIST_SLOTS];
+
+		private final short[][] dist_special = new short[DIST_MODEL_END - DIST_MODEL_START][];
+
+		/**
+		 * The dictionary: circular buffer of the most recent decompressed bytes
+		 */
+		private final byte[] dict;
+
+		private boolean end_of_data;
+
+		/**
+		 * Number of valid bytes in the dictionary
+		 */
+		private int filled;
+
+		private final CountingInputStream in;
+
+		private final short[] is_rep = new short[STATES], is_rep0 = new short[STATES], is_rep1 = new short[STATES],
+				is_rep2 = new short[STATES];
+
+		private final short[][] is_match = new short[STATES][POS_STATES_MAX],
+				is_rep0_long = new short[STATES][POS_STATES_MAX];
+
+		private int lc, lp_mask, pos_mask;
+
+		private short[] literal_probs;
+
+		private final short[] match_len_choice = new short[2], rep_len_choice = new short[2];
+
+		private final short[][] match_len_low = new short[POS_STATES_MAX][LOW_SYMBOLS],
+				match_len_mid = new short[POS_STATES_MAX][MID_SYMBOLS],
+				rep_len_low = new short[POS_STATES_MAX][LOW_SYMBOLS],
+				rep_len_mid = new short[POS_STATES_MAX][MID_SYMBOLS];
+
+		private final short[] match_len_high = new short[HIGH_SYMBOLS], rep_len_high = new short[HIGH_SYMBOLS];
+
+		private boolean need_dict_reset = true, need_props = true;
+
+		/**
+		 * Number of decompressed bytes in the dictionary not yet returned to the caller
+		 */
+		private int pending;
+
+		/**
+		 * Position since the last dictionary reset, for the position dependent probabilities
+		 */
+		private int pos;
+
+		/**
+		 * Compressed bytes of the current LZMA chunk, from which the range decoder reads
+		 */
+		private final byte[] rc_buf = new byte[1 << 16];
+
+		private int rc_pos, rc_end, range, code;
+
+		private int read_idx, write_idx;
+
+		/**
+		 * Remaining uncompressed size of the current chunk
+		 */
+		private int remaining;
+
+		private final int[] reps = new int[4];
+
+		private int state;
+
+		private boolean uncompressed_chunk;
+
+		LZMA2Decoder(CountingInputStream in, int dict_size) {
+			this.in = in;
+			this.dict = new byte[dict_size];
+			for (int i = 0; i < dist_special.length; i++)
+				dist_special[i] = new short[1 << (((i + DIST_MODEL_START) >>> 1) - 1)];
+		}
+
+		private int decodeBit(short[] probs, int index) throws IOException {
+			normalize();
+			int prob = probs[index];
+			int bound = (range >>> 11) * prob;
+			// compare code and bound as unsigned 32-bit integers
+			if ((code ^ 0x80000000) < (bound ^ 0x80000000)) {
+				range = bound;
+				probs[index] = (short) (prob + ((2048 - prob) >>> 5));
+				return 0;
+			} else {
+				range -= bound;
+				code -= bound;
+				probs[index] = (short) (prob - (prob >>> 5));
+				return 1;
+			}
+		}
+
+		private int decodeBitTree(short[] probs) throws IOException {
+			int symbol = 1;
+			do {
+				symbol = (symbol << 1) | decodeBit(probs, symbol);
+			} while (symbol < probs.length);
+			return symbol - probs.length;
+		}
+
+		private int decodeDirectBits(int count) throws IOException {
+			int result = 0;
+			do {
+				normalize();
+				range >>>= 1;
+				int t = (code - range) >>> 31;
+				code -= range & (t - 1);
+				result = (result << 1) | (1 - t);
+			} while (--count != 0);
+			return result;
+		}
+
+		private int decodeLength(short[] choice, short[][] low, short[][] mid, short[] high, int pos_state)
+				throws IOException {
+			if (decodeBit(choice, 0) == 0)
+				return decodeBitTree(low[pos_state]) + MATCH_LEN_MIN;
+			if (decodeBit(choice, 1) == 0)
+				return decodeBitTree(mid[pos_state]) + MATCH_LEN_MIN + LOW_SYMBOLS;
+			return decodeBitTree(high) + MATCH_LEN_MIN + LOW_SYMBOLS + MID_SYMBOLS;
+		}
+
+		private void decodeLiteral() throws IOException {
+			int prev_byte = filled == 0 ? 0 : getByte(0) & 0xFF;
+			int offset = 0x300 * ((prev_byte >> (8 - lc)) + ((pos & lp_mask) << lc));
+			int symbol = 1;
+			if (state < LIT_STATES) {
+				do {
+					symbol = (symbol << 1) | decodeBit(literal_probs, offset + symbol);
+				} while (symbol < 0x100);
+			} else {
+				int match_byte = getByte(reps[0]) & 0xFF;
+				int match_offset = 0x100;
+				do {
+					match_byte <<= 1;
+					int match_bit = match_byte & match_offset;
+					int bit = decodeBit(literal_probs, offset + match_offset + match_bit + symbol);
+					symbol = (symbol << 1) | bit;
+					match_offset &= (0 - bit) ^ ~match_bit;
+				} while (symbol < 0x100);
+			}
+			putByte((byte) symbol);
+			state = state <= 3 ? 0 : (state <= 9 ? state - 3 : state - 6);
+		}
+
+		private int decodeMatch(int pos_state) throws IOException {
+			state = state < LIT_STATES ? 7 : 10;
+			reps[3] = reps[2];
+			reps[2] = reps[1];
+			reps[1] = reps[0];
+			int len = decodeLength(match_len_choice, match_len_low, match_len_mid, match_len_high, pos_state);
+			int dist_slot = decodeBitTree(dist_slots[Math.min(len - MATCH_LEN_MIN, DIST_STATES - 1)]);
+			if (dist_slot < DIST_MODEL_START) {
+				reps[0] = dist_slot;
+			} else {
+				int limit = (dist_slot >>> 1) - 1;
+				reps[0] = (2 | (dist_slot & 1)) << limit;
+				if (dist_slot < DIST_MODEL_END) {
+					reps[0] |= decodeReverseBitTree(dist_special[dist_slot - DIST_MODEL_START]);
+				} else {
+					reps[0] |= decodeDirectBits(limit - ALIGN_BITS) << ALIGN_BITS;
+					reps[0] |= decodeReverseBitTree(dist_align);
+				}
+			}
+			return len;
+		}
+
+		private int decodeRepMatch(int pos_state) throws IOException {
+			if (decodeBit(is_rep0, state) == 0) {
+				if (decodeBit(is_rep0_long[state], pos_state) == 0) {
+					state = state < LIT_STATES ? 9 : 11;
+					return 1;
+				}
+			} else {
+				int tmp;
+				if (decodeBit(is_rep1, state) == 0) {
+					tmp = reps[1];
+				} else {
+					if (decodeBit(is_rep2, state) == 0) {
+						tmp = reps[2];
+					} else {
+						tmp = reps[3];
+						reps[3] = reps[2];
+					}
+					reps[2] = reps[1];
+				}
+				reps[1] = reps[0];
+				reps[0] = tmp;
+			}
+			state = state < LIT_STATES ? 8 : 11;
+			return decodeLength(rep_len_choice, rep_len_low, rep_len_mid, rep_len_high, pos_state);
+		}
+
+		private int decodeReverseBitTree(short[] probs) throws IOException {
+			int symbol = 1, i = 0, result = 0;
+			do {
+				int bit = decodeBit(probs, symbol);
+				symbol = (symbol << 1) | bit;
+				result |= bit << i++;
+			} while (symbol < probs.length);
+			return result;
+		}
+
+		/**
+		 * Decompress some data of the current chunk into the dictionary without overwriting the pending bytes
+		 */
+		private void decompress() throws IOException {
+			if (uncompressed_chunk) {
+				int n = Math.min(remaining, dict.length - pending);
+				int first = Math.min(n, dict.length - write_idx);
+				in.readFully(dict, write_idx, first);
+				in.readFully(dict, 0, n - first);
+				write_idx = (write_idx + n) % dict.length;
+				filled = Math.min(dict.length, filled + n);
+				pending += n;
+				pos += n;
+				remaining -= n;
+				return;
+			}
+			while (remaining > 0 && pending <= dict.length - MATCH_LEN_MAX) {
+				int pos_state = pos & pos_mask;
+				if (decodeBit(is_match[state], pos_state) == 0) {
+					decodeLiteral();
+					continue;
+				}
+				int len = decodeBit(is_rep, state) == 0 ? decodeMatch(pos_state) : decodeRepMatch(pos_state);
+				if (reps[0] < 0 || reps[0] >= filled || len > remaining)
+					throw new IOException("Corrupt LZMA2 data");
+				for (int i = 0; i < len; i++)
+					putByte(getByte(reps[0]));
+			}
+		}
+
+		private byte getByte(int dist) {
+			int i = write_idx - dist - 1;
+			return dict[i < 0 ? i + dict.length : i];
+		}
+
+		private void normalize() throws IOException {
+			if ((range & 0xFF000000) == 0) {
+				if (rc_pos >= rc_end)
+					throw new IOException("Corrupt LZMA2 data");
+				code = (code << 8) | (rc_buf[rc_pos++] & 0xFF);
+				range <<= 8;
+			}
+		}
+
+		private void putByte(byte b) {
+			dict[write_idx] = b;
+			if (++write_idx == dict.length)
+				write_idx = 0;
+			if (filled < dict.length)
+				filled++;
+			pending++;
+			pos++;
+			remaining--;
+		}
+
+		int read(byte[] b, int off, int len) throws IOException {
+			int n = 0;
+			while (n < len) {
+				if (pending > 0) {
+					int k = Math.min(Math.min(pending, len - n), dict.length - read_idx);
+					System.arraycopy(dict, read_idx, b, off + n, k);
+					read_idx = (read_idx + k) % dict.length;
+					pending -= k;
+					n += k;
+				} else if (remaining > 0) {
+					decompress();
+				} else if (end_of_data) {
+					break;
+				} else {
+					startChunk();
+				}
+			}
+			return (n == 0 && end_of_data) ? -1 : n;
+		}
+
+		private void resetState() {
+			initProbs(is_match);
+			initProbs(is_rep);
+			initProbs(is_rep0);
+			initProbs(is_rep1);
+			initProbs(is_rep2);
+			initProbs(is_rep0_long);
+			initProbs(dist_slots);
+			initProbs(dist_special);
+			initProbs(dist_align);
+			initProbs(match_len_choice);
+			initProbs(match_len_low);
+			initProbs(match_len_mid);
+			initProbs(match_len_high);
+			initProbs(rep_len_choice);
+			initProbs(rep_len_low);
+			initProbs(rep_len_mid);
+			initProbs(rep_len_high);
+			initProbs(literal_probs);
+			state = 0;
+			Arrays.fill(reps, 0);
+		}
+
+		private void startChunk() throws IOException {
+			int control = in.read();
+			if (control == 0x00) {
+				end_of_data = true;
+				return;
+			}
+			if (control >= 0xE0 || control == 0x01) {
+				need_dict_reset = false;
+				filled = pending = pos = read_idx = write_idx = 0;
+			} else if (need_dict_reset) {
+				throw new IOException("Corrupt LZMA2 data");
+			}
+
+			if (control < 0x80) {
+				if (control > 0x02)
+					throw new IOException("Corrupt LZMA2 data");
+				uncompressed_chunk = true;
+				remaining = in.readUnsignedShort() + 1;
+				return;
+			}
+
+			uncompressed_chunk = false;
+			remaining = ((control & 0x1F) << 16) + in.readUnsignedShort() + 1;
+			int compressed_size = in.readUnsignedShort() + 1;
+			if (control >= 0xC0) {
+				int props = in.read();
+				if (props > (4 * 5 + 4) * 9 + 8)
+					throw new IOException("Corrupt LZMA2 data");
+				int pb = props / (9 * 5);
+				props -= pb * 9 * 5;
+				int lp = props / 9;
+				lc = props - lp * 9;
+				if (lc + lp > 4)
+					throw new IOException("Corrupt LZMA2 data");
+				lp_mask = (1 << lp) - 1;
+				pos_mask = (1 << pb) - 1;
+				literal_probs = new short[0x300 << (lc + lp)];
+				need_props = false;
+			} else if (need_props) {
+				throw new IOException("Corrupt LZMA2 data");
+			}
+			if (control >= 0xA0)
+				resetState();
+
+			// Initialize the range decoder on the compressed data of this chunk
+			in.readFully(rc_buf, 0, compressed_size);
+			if (compressed_size < 5 || rc_buf[0] != 0)
+				throw new IOException("Corrupt LZMA2 data");
+			code = ((rc_buf[1] & 0xFF) << 24) | ((rc_buf[2] & 0xFF) << 16) | ((rc_buf[3] & 0xFF) << 8)
+					| (rc_buf[4] & 0xFF);
+			range = 0xFFFFFFFF;
+			rc_pos = 5;
+			rc_end = compressed_size;
+		}
+
+	}
+
+	/**
+	 * Raised when the stream uses a feature (e.g. a filter other than LZMA2) that this decoder does not support
+	 */
+	public static class UnsupportedFormatException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		public UnsupportedFormatException(String message) {
+			super(message);
+		}
+
+	}
+
+	private static final int CHECK_NONE = 0, CHECK_CRC32 = 1, CHECK_CRC64 = 4, CHECK_SHA256 = 10;
+
+	private static final long[] crc64_table = new long[256];
+
+	private static final int FILTER_LZMA2 = 0x21;
+
+	private static final byte[] header_magic = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			long crc = i;
+			for (int j = 0; j < 8; j++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xC96C5795D7870F42L : crc >>> 1;
+			crc64_table[i] = crc;
+		}
+	}
+
+	private static long readLittleEndian(byte[] b, int off, int len) {
+		long value = 0;
+		for (int i = len - 1; i >= 0; i--)
+			value = (value << 8) | (b[off + i] & 0xFF);
+		return value;
+	}
+
+	private static long readVarInt(byte[] b, int[] pos) throws IOException {
+		long value = 0;
+		for (int i = 0; i < 9; i++) {
+			if (pos[0] >= b.length)
+				break;
+			int c = b[pos[0]++] & 0xFF;
+			value |= (long) (c & 0x7F) << (7 * i);
+			if ((c & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Corrupt XZ block header");
+	}
+
+	/**
+	 * Decoder of the current block, {@code null} between blocks
+	 */
+	private LZMA2Decoder block;
+
+	private long block_start;
+
+	private final int check_type;
+
+	private final CRC32 crc32 = new CRC32();
+
+	private long crc64;
+
+	private boolean end_of_stream;
+
+	private final CountingInputStream in;
+
+	private final MessageDigest sha256;
+
+	private final byte[] single_byte = new byte[1];
+
+	/**
+	 * Create a decompressing stream
+	 *
+	 * @param in
+	 *            Stream of XZ compressed data, preferably buffered
+	 * @throws IOException
+	 *             if the stream header is invalid or its integrity check is not supported
+	 */
+	public XZInputStream(InputStream in) throws IOException {
+		this.in = new CountingInputStream(in);
+		byte[] header = new byte[12];
+		this.in.readFully(header, 0, header.length);
+		for (int i = 0; i < header_magic.length; i++) {
+			if (header[i] != header_magic[i])
+				throw new IOException("Not in XZ format");
+		}
+		crc32.update(header, 6, 2);
+		if (crc32.getValue() != readLittleEndian(header, 8, 4) || header[6] != 0 || (header[7] & 0xF0) != 0)
+			throw new IOException("Corrupt XZ stream header");
+		check_type = header[7];
+		if (check_type == CHECK_SHA256) {
+			try {
+				sha256 = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new UnsupportedFormatException("SHA-256 integrity check is not supported");
+			}
+		} else
+			sha256 = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.in.close();
+	}
+
+	/**
+	 * Read the remainder of the current block (padding and integrity check) and verify the check
+	 */
+	private void finishBlock() throws IOException {
+		while (((in.count - block_start) & 3) != 0) {
+			if (in.read() != 0)
+				throw new IOException("Corrupt XZ block padding");
+		}
+		int check_size = check_type == CHECK_NONE ? 0 : 4 << ((check_type - 1) / 3);
+		byte[] check = new byte[check_size];
+		in.readFully(check, 0, check_size);
+		boolean valid;
+		switch (check_type) {
+		case CHECK_CRC32:
+			valid = crc32.getValue() == readLittleEndian(check, 0, 4);
+			break;
+		case CHECK_CRC64:
+			valid = ~crc64 == readLittleEndian(check, 0, 8);
+			break;
+		case CHECK_SHA256:
+			valid = Arrays.equals(sha256.digest(), check);
+			break;
+		default:
+			valid = true;
+		}
+		if (!valid)
+			throw new IOException("XZ integrity check failed");
+		block = null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(single_byte, 0, 1) < 0 ? -1 : single_byte[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		while (!end_of_stream) {
+			if (block == null && !startBlock()) {
+				end_of_stream = true;
+				break;
+			}
+			int n = block.read(b, off, len);
+			if (n > 0) {
+				updateCheck(b, off, n);
+				return n;
+			}
+			finishBlock();
+		}
+		return -1;
+	}
+
+	/**
+	 * Read the header of the next block and prepare its decoder
+	 *
+	 * @return {@code false} if there is no more block i.e. the index is reached
+	 */
+	private boolean startBlock() throws IOException {
+		block_start = in.count;
+		int header_size_byte = in.read();
+		if (header_size_byte == 0)
+			return false;
+		byte[] header = new byte[(header_size_byte + 1) * 4];
+		header[0] = (byte) header_size_byte;
+		in.readFully(header, 1, header.length - 1);
+		crc32.reset();
+		crc32.update(header, 0, header.length - 4);
+		if (crc32.getValue() != readLittleEndian(header, header.length - 4, 4))
+			throw new IOException("Corrupt XZ block header");
+
+		int flags = header[1] & 0xFF;
+		if ((flags & 0x3C) != 0 || (flags & 0x03) != 0)
+			throw new UnsupportedFormatException("Unsupported XZ filter chain");
+		int[] pos = { 2 };
+		if ((flags & 0x40) != 0)
+			readVarInt(header, pos); // compressed size
+		long uncompressed_size = (flags & 0x80) != 0 ? readVarInt(header, pos) : -1;
+		long filter_id = readVarInt(header, pos);
+		long props_size = readVarInt(header, pos);
+		if (filter_id != FILTER_LZMA2 || props_size != 1)
+			throw new UnsupportedFormatException("Unsupported XZ filter " + filter_id);
+		int dict_bits = header[pos[0]] & 0x3F;
+		if (dict_bits > 40)
+			throw new IOException("Corrupt XZ block header");
+		long dict_size = dict_bits == 40 ? 0xFFFFFFFFL : (long) (2 | (dict_bits & 1)) << (dict_bits / 2 + 11);
+		// no need for a dictionary larger than the data, but keep room for the longest match
+		if (uncompressed_size >= 0)
+			dict_size = Math.min(dict_size, Math.max(uncompressed_size, 4096));
+		if (dict_size > Integer.MAX_VALUE - 8)
+			throw new UnsupportedFormatException("XZ dictionary too large");
+
+		block_start = in.count;
+		block = new LZMA2Decoder(in, (int) dict_size);
+		crc32.reset();
+		crc64 = -1;
+		if (sha256 != null)
+			sha256.reset();
+		return true;
+	}
+
+	private void updateCheck(byte[] b, int off, int len) {
+		switch (check_type) {
+		case CHECK_CRC32:
+			crc32.update(b, off, len);
+			break;
+		case CHECK_CRC64:
+			long crc = crc64;
+			for (int i = off; i < off + len; i++)
+				crc = crc64_table[(b[i] ^ (int) crc) & 0xFF] ^ (crc >>> 8);
+			crc64 = crc;
+			break;
+		case CHECK_SHA256:
+			sha256.update(b, off, len);
+			break;
+		default:
+			break;
+		}
+	}
+
+}